@@ -17,20 +17,18 @@
 package com.example.android.iogallery;
 
 import android.app.Activity;
-import android.app.ActivityManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.text.format.Formatter;
@@ -41,7 +39,9 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AbsListView.MultiChoiceModeListener;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AbsListView.RecyclerListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
@@ -51,24 +51,53 @@ import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import com.example.android.util.LongSparseBooleanArray;
-import com.example.android.util.LruCache;
+import com.example.android.util.CacheStats;
+import com.example.android.util.LongBitmap;
+import com.example.android.util.LongBitmapFile;
+import com.example.android.util.LongBooleanMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * List of photos on device, which may be cached as user scrolls.
  */
 public class AlbumActivity extends Activity {
     private static final String TAG = "IoGallery";
-    
-    // TODO: place LruCache into a Loader, onRetain(), or static to keep across config changes
 
     private static final int LOADER_CURSOR = 1;
     private static final int LOADER_STARRED = 2;
 
+    private static final long STATS_REFRESH_MILLIS = 1000;
+
+    private static final String STARRED_SNAPSHOT_FILE = "starred_snapshot";
+
+    private static final String STATE_CACHE_ENABLED = "cacheEnabled";
+    private static final String STATE_TRANSACTION_ENABLED = "transactionEnabled";
+
     private StarredDatabaseHelper mStarredDb;
+    private StarredStore mStarredStore;
+    private StarredWriteQueue mStarredWriteQueue;
+    private File mStarredSnapshotFile;
+
+    /** Starred photos saved by an earlier run, until the loader validates them. */
+    private LongBitmapFile mSavedStarred;
 
     private ThumbnailCache mCache;
     private boolean mCacheEnabled;
+    private boolean mDestroyed;
+
+    private long mCreateTime;
+    private boolean mFullGridLogged;
+
+    /** Thumbnails currently shown, which must be released when replaced. */
+    private final HashMap<ImageView, Bitmap> mBoundThumbnails = new HashMap<ImageView, Bitmap>();
+
+    /** Thumbnails resolved ahead of scrolling, which are released unless bound. */
+    private final HashMap<Long, Bitmap> mWindowThumbnails = new HashMap<Long, Bitmap>();
+    private int mWindowFirst = -1;
+    private int mWindowCount;
     private boolean mTransactionEnabled;
     
     private PhotoAdapter mAdapter;
@@ -79,23 +108,64 @@ public class AlbumActivity extends Activity {
     private TextView mStatsHits;
     private TextView mStatsMisses;
     private TextView mStatsEvictions;
+    private TextView mStatsReuse;
+    private TextView mStatsBudget;
+    private TextView mStatsEstimate;
+
+    private final Handler mHandler = new Handler();
+    private CacheStats mLastStats;
+
+    private final Runnable mStatsRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (mCacheEnabled) {
+                mCache.adaptSize();
+            }
+            updateCacheStatsUi();
+            mHandler.postDelayed(this, STATS_REFRESH_MILLIS);
+        }
+    };
 
     /**
      * Adapter showing list of photos from
      * {@link android.provider.MediaStore.Images}.
      */
     private class PhotoAdapter extends CursorAdapter {
-        private LongSparseBooleanArray mStarred;
+        private StarredStore.Snapshot mStarred;
         
-        public PhotoAdapter(Context context) {
+        public PhotoAdapter(Context context, StarredStore.Snapshot starred) {
             super(context, null, false);
+            mStarred = starred;
         }
 
-        public void swapStarred(LongSparseBooleanArray starred) {
+        /**
+         * Show {@code starred}, rebinding every cell.
+         */
+        public void swapStarred(StarredStore.Snapshot starred) {
             mStarred = starred;
             notifyDataSetChanged();
         }
 
+        /**
+         * Show {@code starred}, rebinding only the visible cells of
+         * {@code grid} whose ids are in {@code changed}.
+         */
+        public void updateStarred(
+                StarredStore.Snapshot starred, LongBitmap changed, GridView grid) {
+            mStarred = starred;
+            final int first = grid.getFirstVisiblePosition();
+            final int childCount = grid.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                final long photoId = grid.getItemIdAtPosition(first + i);
+                if (changed.contains(photoId)) {
+                    final View starredView = grid.getChildAt(i).findViewById(
+                            android.R.id.checkbox);
+                    starredView.setVisibility(
+                            starred.isStarred(photoId) ? View.VISIBLE : View.GONE);
+                }
+            }
+        }
+
         @Override
         public View newView(Context context, Cursor cursor, ViewGroup parent) {
             return LayoutInflater.from(context).inflate(R.layout.album_item, parent, false);
@@ -104,7 +174,7 @@ public class AlbumActivity extends Activity {
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
             final long photoId = cursor.getLong(cursor.getColumnIndex(BaseColumns._ID));
-            final boolean starred = (mStarred != null && mStarred.get(photoId));
+            final boolean starred = mStarred.isStarred(photoId);
 
             final ImageView imageView = (ImageView) view.findViewById(android.R.id.icon);
             final View starredView = view.findViewById(android.R.id.checkbox);
@@ -118,11 +188,17 @@ public class AlbumActivity extends Activity {
             }
 
             if (mCacheEnabled) {
-                // Cache enabled, try looking for cache hit
-                final Bitmap cachedResult = mCache.get(photoId);
+                // Cache enabled, try looking for cache hit without blocking
+                // on a thumbnail decode
+                Bitmap cachedResult = mWindowThumbnails.remove(photoId);
+                if (cachedResult != null) {
+                    // Prefetching counted nothing, so count the access now
+                    mCache.recordShown(photoId);
+                } else {
+                    cachedResult = mCache.acquire(photoId);
+                }
                 if (cachedResult != null) {
-                    imageView.setImageBitmap(cachedResult);
-                    updateCacheStatsUi();
+                    setThumbnail(imageView, cachedResult);
                     return;
                 }
             }
@@ -130,7 +206,7 @@ public class AlbumActivity extends Activity {
             // If we arrived here, either cache is disabled or cache miss, so we
             // need to kick task to load manually
             final ThumbnailAsyncTask task = new ThumbnailAsyncTask(imageView);
-            imageView.setImageBitmap(null);
+            setThumbnail(imageView, null);
             imageView.setTag(task);
             task.execute(photoId);
         }
@@ -152,88 +228,166 @@ public class AlbumActivity extends Activity {
         protected Bitmap doInBackground(Long... params) {
             final long id = params[0];
 
-            final Bitmap result = MediaStore.Images.Thumbnails.getThumbnail(
-                    getContentResolver(), id, MediaStore.Images.Thumbnails.MINI_KIND, null);
-
-            // When cache enabled, keep reference to this bitmap
+            // When cache enabled, load through it so that views rebound to the
+            // same photo share a single decode, and the result is kept
             if (mCacheEnabled) {
-                mCache.put(id, result);
+                return mCache.load(id);
             }
 
-            return result;
+            return mCache.loadUncached(id);
         }
 
         @Override
         protected void onPostExecute(Bitmap result) {
-            if (mTarget.getTag() == this) {
-                mTarget.setImageBitmap(result);
+            if (mTarget.getTag() == this && !mDestroyed) {
+                setThumbnail(mTarget, result);
                 mTarget.setTag(null);
-                updateCacheStatsUi();
+                logFirstFullGrid();
+            } else if (result != null) {
+                mCache.release(result);
+            }
+        }
+
+        @Override
+        protected void onCancelled(Bitmap result) {
+            if (result != null) {
+                mCache.release(result);
             }
-        }        
+        }
     }
 
     /**
-     * Task that saves starred state to {@link StarredDatabaseHelper} for given
-     * {@link BaseColumns#_ID}.
+     * Reads the starred photos saved by an earlier run off the main thread,
+     * shows them, then starts the loader that checks them against the
+     * database and seeds {@link StarredStore} with the result.
      */
-    public class StarredPersistTask extends AsyncTask<Void, Void, Void> {
-        private final long[] mPhotoIds;
-        private final boolean mStarred;
-
-        public StarredPersistTask(long[] photoIds, boolean starred) {
-            mPhotoIds = photoIds;
-            mStarred = starred;
+    private class SavedStarredTask extends AsyncTask<File, Void, LongBitmapFile> {
+        @Override
+        protected LongBitmapFile doInBackground(File... params) {
+            return LongBitmapFile.read(params[0]);
         }
 
         @Override
-        protected Void doInBackground(Void... params) {
-            final SQLiteDatabase db = mStarredDb.getWritableDatabase();
-
-            final ContentValues values = new ContentValues();
-            values.put(StarredDatabaseHelper.COLUMN_STARRED, mStarred ? 1 : 0);
+        protected void onPostExecute(LongBitmapFile result) {
+            if (mDestroyed) {
+                return;
+            }
+            mSavedStarred = result;
+            if (result != null) {
+                mStarredStore.preview(result.getBitmap());
+            }
+            getLoaderManager().initLoader(LOADER_STARRED, null, mStarredCallbacks);
+        }
+    }
 
-            final long start = System.nanoTime();
+    /**
+     * Show {@code bitmap} in {@code view}, releasing whatever it showed before
+     * so the bitmap can be reused once evicted. The given bitmap must have
+     * been acquired from {@link ThumbnailCache}.
+     */
+    private void setThumbnail(ImageView view, Bitmap bitmap) {
+        final Bitmap previous = (bitmap != null)
+                ? mBoundThumbnails.put(view, bitmap) : mBoundThumbnails.remove(view);
+        view.setImageBitmap(bitmap);
+        if (previous != null) {
+            mCache.release(previous);
+        }
+    }
 
-            if (mTransactionEnabled) db.beginTransaction();
-            try {
-                for (long photoId : mPhotoIds) {
-                    values.put(StarredDatabaseHelper.COLUMN_ID, photoId);
-                    db.insert(StarredDatabaseHelper.TABLE_STARRED, null, values);
-                }
-                if (mTransactionEnabled) db.setTransactionSuccessful();
-            } finally {
-                if (mTransactionEnabled) db.endTransaction();
-            }
+    /**
+     * Resolve cached thumbnails for the rows just outside the visible window
+     * with a single cache lookup, so that cells scrolling into view in either
+     * direction are bound without waiting on the display lock. Only rows that
+     * are actually bound count as cache accesses.
+     */
+    private void resolveWindow(int first, int count) {
+        mWindowFirst = first;
+        mWindowCount = count;
+        releaseWindow();
+        if (!mCacheEnabled || count == 0) {
+            return;
+        }
 
-            final long delta = System.nanoTime() - start;
-            Log.d(TAG, "Persisting took " + (delta / 1000000) + "ms");
+        final int columns = Math.max(1, mGridView.getNumColumns());
+        final int total = mGridView.getCount();
+        final ArrayList<Long> ids = new ArrayList<Long>(columns * 2);
+        for (int i = Math.max(0, first - columns); i < first; i++) {
+            ids.add(mGridView.getItemIdAtPosition(i));
+        }
+        for (int i = first + count; i < Math.min(total, first + count + columns); i++) {
+            ids.add(mGridView.getItemIdAtPosition(i));
+        }
+        mCache.acquireAll(ids, mWindowThumbnails);
+    }
 
-            return null;
+    private void releaseWindow() {
+        for (Bitmap bitmap : mWindowThumbnails.values()) {
+            mCache.release(bitmap);
         }
+        mWindowThumbnails.clear();
+    }
 
-        @Override
-        protected void onPostExecute(Void result) {
-            // Reload starred data to reflect newly persisted data
-            getLoaderManager().restartLoader(LOADER_STARRED, null, mStarredCallbacks);
-        }        
+    /**
+     * Log how long after creation every visible cell first showed its
+     * thumbnail, to measure the effect of warming up the cache.
+     */
+    private void logFirstFullGrid() {
+        final int childCount = mGridView.getChildCount();
+        if (mFullGridLogged || childCount == 0) {
+            return;
+        }
+        for (int i = 0; i < childCount; i++) {
+            final View imageView = mGridView.getChildAt(i).findViewById(android.R.id.icon);
+            if (!mBoundThumbnails.containsKey(imageView)) {
+                return;
+            }
+        }
+        mFullGridLogged = true;
+        final long delta = System.nanoTime() - mCreateTime;
+        Log.d(TAG, "First full grid of " + childCount + " after " + (delta / 1000000) + "ms");
     }
 
     /**
-     * Update UI that shows cache statistics.
+     * Update UI that shows cache statistics, along with rates since the last
+     * update. Called from a timer rather than as thumbnails are bound, so
+     * scrolling never waits on it.
      */
     private void updateCacheStatsUi() {
+        final CacheStats stats = mCache.stats();
+        final CacheStats interval = (mLastStats != null) ? stats.minus(mLastStats) : stats;
+        mLastStats = stats;
+
         mStatsSize.setText(Formatter.formatFileSize(this, mCache.size()));
-        mStatsHits.setText(Integer.toString(mCache.hitCount()));
-        mStatsMisses.setText(Integer.toString(mCache.missCount()));
-        mStatsEvictions.setText(Integer.toString(mCache.evictionCount()));
+        mStatsHits.setText(stats.hitCount() + " (" + Math.round(interval.hitsPerSecond())
+                + "/s)");
+        mStatsMisses.setText(Long.toString(stats.missCount()));
+        mStatsEvictions.setText(stats.evictionCount() + " (" + Formatter.formatFileSize(
+                this, Math.round(interval.evictionSizePerSecond())) + "/s)");
+        mStatsReuse.setText(mCache.getPool().reusePercent() + "%");
+
+        final int decision = mCache.lastAdaptDecision();
+        mStatsBudget.setText(Formatter.formatFileSize(this, mCache.maxSize())
+                + (decision == ThumbnailCache.ADAPT_GREW ? " (grew)"
+                        : decision == ThumbnailCache.ADAPT_SHRANK ? " (shrank)" : ""));
+        final double[] estimates = mCache.estimatedHitRatios();
+        mStatsEstimate.setText(Math.round(estimates[0] * 100) + "/"
+                + Math.round(estimates[1] * 100) + "/" + Math.round(estimates[2] * 100) + "%");
     }
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = System.nanoTime();
+
+        if (savedInstanceState != null) {
+            mTransactionEnabled = savedInstanceState.getBoolean(STATE_TRANSACTION_ENABLED);
+        }
 
         mStarredDb = new StarredDatabaseHelper(this);
+        mStarredSnapshotFile = new File(getCacheDir(), STARRED_SNAPSHOT_FILE);
+        mStarredWriteQueue = new StarredWriteQueue(
+                new StarredWriter(mStarredDb), mStarredSnapshotFile);
+        mStarredWriteQueue.setTransactionsEnabled(mTransactionEnabled);
 
         setContentView(R.layout.album);
 
@@ -242,13 +396,27 @@ public class AlbumActivity extends Activity {
         mStatsHits = (TextView) findViewById(R.id.stats_hits);
         mStatsMisses = (TextView) findViewById(R.id.stats_misses);
         mStatsEvictions = (TextView) findViewById(R.id.stats_evictions);
+        mStatsReuse = (TextView) findViewById(R.id.stats_reuse);
+        mStatsBudget = (TextView) findViewById(R.id.stats_budget);
+        mStatsEstimate = (TextView) findViewById(R.id.stats_estimate);
+
+        // Shared with the rest of the process so it survives recreation, and
+        // warmed with thumbnails that were hot before the process last died.
+        // Whether it is enabled is kept by the cache, and restored from saved
+        // state in case the process died meanwhile.
+        mCache = ThumbnailCache.getInstance(this);
+        if (savedInstanceState != null) {
+            mCache.setEnabled(savedInstanceState.getBoolean(STATE_CACHE_ENABLED));
+        }
+        mCacheEnabled = mCache.isEnabled();
+        mStats.setVisibility(mCacheEnabled ? View.VISIBLE : View.GONE);
+        if (mCacheEnabled) {
+            mCache.warmUp(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
 
-        // Pick cache size based on memory class of device
-        final ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
-        final int memoryClassBytes = am.getMemoryClass() * 1024 * 1024;
-        mCache = new ThumbnailCache(memoryClassBytes / 2);
-
-        mAdapter = new PhotoAdapter(this);
+        mStarredStore = StarredStore.getInstance();
+        mStarredStore.addListener(mStarredChangeListener);
+        mAdapter = new PhotoAdapter(this, mStarredStore.getSnapshot());
 
         mGridView = (GridView) findViewById(android.R.id.list);
         mGridView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
@@ -258,9 +426,25 @@ public class AlbumActivity extends Activity {
         mGridView.setRecyclerListener(new RecyclerListener() {
             @Override
             public void onMovedToScrapHeap(View view) {
-                // Release strong reference when a view is recycled
+                // Release strong reference when a view is recycled, so the
+                // bitmap can be reused once evicted
                 final ImageView imageView = (ImageView) view.findViewById(android.R.id.icon);
-                imageView.setImageBitmap(null);
+                setThumbnail(imageView, null);
+            }
+        });
+
+        mGridView.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (firstVisibleItem != mWindowFirst || visibleItemCount != mWindowCount) {
+                    resolveWindow(firstVisibleItem, visibleItemCount);
+                }
+                logFirstFullGrid();
             }
         });
 
@@ -268,19 +452,78 @@ public class AlbumActivity extends Activity {
 
         // Kick off loader for Cursor with list of photos
         getLoaderManager().initLoader(LOADER_CURSOR, null, mCursorCallbacks);
-        getLoaderManager().initLoader(LOADER_STARRED, null, mStarredCallbacks);
+        if (!mStarredStore.isSeeded()) {
+            // Starred state lives in memory once read, so the database is
+            // only read again if the process died. Meanwhile show the copy
+            // saved by the last run, which is mapped rather than queried, and
+            // let the loader check it against the database.
+            new SavedStarredTask().executeOnExecutor(
+                    AsyncTask.THREAD_POOL_EXECUTOR, mStarredSnapshotFile);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_CACHE_ENABLED, mCacheEnabled);
+        outState.putBoolean(STATE_TRANSACTION_ENABLED, mTransactionEnabled);
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        updateCacheStatsUi();
+        mLastStats = null;
+        mStatsRefresh.run();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mStatsRefresh);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mCache.saveHotKeys(AsyncTask.SERIAL_EXECUTOR);
+
+        // Process may be killed from here on, so start persisting starred
+        // changes still waiting to be merged with later ones
+        mStarredWriteQueue.flushAsync();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mDestroyed = true;
         mAdapter.swapCursor(null);
+        mStarredStore.removeListener(mStarredChangeListener);
+        mStarredWriteQueue.quit();
+
+        // Cache outlives this activity, so hand back everything displayed
+        releaseWindow();
+        for (Bitmap bitmap : mBoundThumbnails.values()) {
+            mCache.release(bitmap);
+        }
+        mBoundThumbnails.clear();
+
+        // Persist disk cache index so next launch can skip recovery scan
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCache.flush();
+            }
+        });
+    }
+
+    /**
+     * Show the new starred state of {@code photoIds} immediately, and queue
+     * it to be persisted in the background.
+     */
+    private void setStarred(long[] photoIds, boolean starred) {
+        mStarredStore.apply(photoIds, starred);
+        mStarredWriteQueue.enqueue(photoIds, starred,
+                mStarredStore.isSeeded() ? mStarredStore.getSnapshot() : null);
     }
 
     private MultiChoiceModeListener mStarredListener = new MultiChoiceModeListener() {
@@ -299,12 +542,12 @@ public class AlbumActivity extends Activity {
         public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
             switch (item.getItemId()) {
                 case R.id.menu_star: {
-                    new StarredPersistTask(mGridView.getCheckedItemIds(), true).execute();
+                    setStarred(mGridView.getCheckedItemIds(), true);
                     mode.finish();
                     return true;
                 }
                 case R.id.menu_star_off: {
-                    new StarredPersistTask(mGridView.getCheckedItemIds(), false).execute();
+                    setStarred(mGridView.getCheckedItemIds(), false);
                     mode.finish();
                     return true;
                 }
@@ -333,23 +576,26 @@ public class AlbumActivity extends Activity {
         // Memory we can release here will help overall system performance, and
         // make us a smaller target as the system looks for memory
 
-        if (level >= TRIM_MEMORY_MODERATE) { // 60
-            // Nearing middle of list of cached background apps; evict our
-            // entire thumbnail cache
-            Log.v(TAG, "evicting entire thumbnail cache");
-            mCache.evictAll();
-
-        } else if (level >= TRIM_MEMORY_BACKGROUND) { // 40
-            // Entering list of cached background apps; evict oldest half of our
-            // thumbnail cache
-            Log.v(TAG, "evicting oldest half of thumbnail cache");
-            mCache.trimToSize(mCache.size() / 2);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            // Remember what was hot before evicting it, in case the process
+            // is killed next
+            mCache.saveHotKeys(AsyncTask.SERIAL_EXECUTOR);
         }
+
+        // Budget for each level comes from the cache's TrimPolicy, which
+        // keeps everything when merely hidden and empties the cache only when
+        // we are next in line to be killed. Only the in-memory eviction runs
+        // here; spilling to disk and waiting on removals happen off the main
+        // thread.
+        mCache.trimMemory(level, AsyncTask.SERIAL_EXECUTOR);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.album, menu);
+        menu.findItem(R.id.menu_cache).setChecked(mCacheEnabled);
+        menu.findItem(R.id.menu_off_heap).setChecked(mCache.getOffHeapTier() != null);
+        menu.findItem(R.id.menu_transaction).setChecked(mTransactionEnabled);
         return true;
     }
 
@@ -359,13 +605,27 @@ public class AlbumActivity extends Activity {
             case R.id.menu_cache: {
                 mCacheEnabled = !item.isChecked();
                 item.setChecked(mCacheEnabled);
-                mCache.evictAll();
+                mCache.setEnabled(mCacheEnabled);
+                if (mCacheEnabled) {
+                    mCache.warmUp(AsyncTask.THREAD_POOL_EXECUTOR);
+                } else {
+                    // Nothing shows cached thumbnails any more, so give back
+                    // their memory
+                    releaseWindow();
+                    mCache.clearMemory(AsyncTask.SERIAL_EXECUTOR);
+                }
                 mStats.setVisibility(mCacheEnabled ? View.VISIBLE : View.GONE);
                 return true;
             }
+            case R.id.menu_off_heap: {
+                item.setChecked(!item.isChecked());
+                mCache.setOffHeapTierSize(item.isChecked() ? mCache.maxSize() : 0);
+                return true;
+            }
             case R.id.menu_transaction: {
                 mTransactionEnabled = !item.isChecked();
                 item.setChecked(mTransactionEnabled);
+                mStarredWriteQueue.setTransactionsEnabled(mTransactionEnabled);
                 return true;
             }
         }
@@ -404,37 +664,33 @@ public class AlbumActivity extends Activity {
         }
     };
 
-    private final LoaderCallbacks<LongSparseBooleanArray>
-            mStarredCallbacks = new LoaderCallbacks<LongSparseBooleanArray>() {
+    private final LoaderCallbacks<LongBooleanMap>
+            mStarredCallbacks = new LoaderCallbacks<LongBooleanMap>() {
         @Override
-        public Loader<LongSparseBooleanArray> onCreateLoader(int id, Bundle args) {
-            return new StarredLoader(AlbumActivity.this, mStarredDb);
+        public Loader<LongBooleanMap> onCreateLoader(int id, Bundle args) {
+            return new StarredLoader(AlbumActivity.this, mStarredDb, mSavedStarred);
         }
 
         @Override
-        public void onLoadFinished(
-                Loader<LongSparseBooleanArray> loader, LongSparseBooleanArray data) {
-            mAdapter.swapStarred(data);
+        public void onLoadFinished(Loader<LongBooleanMap> loader, LongBooleanMap data) {
+            mStarredStore.seed(data);
+            mSavedStarred = null;
         }
 
         @Override
-        public void onLoaderReset(Loader<LongSparseBooleanArray> loader) {
-            mAdapter.swapStarred(null);
+        public void onLoaderReset(Loader<LongBooleanMap> loader) {
+            // Store keeps its state
         }
     };
 
-    /**
-     * Simple extension that uses {@link Bitmap} instances as keys, using their
-     * memory footprint in bytes for sizing.
-     */
-    public static class ThumbnailCache extends LruCache<Long, Bitmap> {
-        public ThumbnailCache(int maxSizeBytes) {
-            super(maxSizeBytes);
-        }
-        
+    private final StarredStore.Listener mStarredChangeListener = new StarredStore.Listener() {
         @Override
-        protected int sizeOf(Long key, Bitmap value) {
-            return value.getByteCount();
+        public void onStarredChanged(StarredStore.Snapshot snapshot, LongBitmap changed) {
+            if (changed != null) {
+                mAdapter.updateStarred(snapshot, changed, mGridView);
+            } else {
+                mAdapter.swapStarred(snapshot);
+            }
         }
-    }
+    };
 }
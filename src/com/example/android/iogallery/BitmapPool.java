@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.iogallery;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Pool of unused mutable {@link Bitmap} instances, bucketed by dimensions and
+ * config, that can be decoded into with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of
+ * allocating. Oldest bitmaps are dropped first when the pool exceeds its
+ * byte budget.
+ */
+public class BitmapPool {
+    private final HashMap<Long, ArrayList<Bitmap>> mBuckets =
+            new HashMap<Long, ArrayList<Bitmap>>();
+
+    /** Every pooled bitmap, oldest first. */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+    private long mSize;
+
+    private int mPutCount;
+    private int mRequestCount;
+    private int mReuseCount;
+    private int mEvictionCount;
+
+    /**
+     * Returns a pooled bitmap matching the given dimensions and config, or
+     * null when none is available. The returned bitmap is no longer pooled.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        mRequestCount++;
+        final ArrayList<Bitmap> bucket = mBuckets.get(bucketKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+
+        final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        removeIdentity(mOrder, bitmap);
+        mSize -= bitmap.getByteCount();
+        mReuseCount++;
+        return bitmap;
+    }
+
+    /**
+     * Offer {@code bitmap} for reuse. The caller must not hold any other
+     * reference to it. Returns false if the bitmap cannot be reused.
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getConfig() == null) {
+            return false;
+        }
+
+        final Long key = bucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mSize += bitmap.getByteCount();
+        mPutCount++;
+        return true;
+    }
+
+    /**
+     * Take {@code bitmap} back out of the pool, returning false if it was not
+     * pooled, such as when it has already been handed out by {@link #get}.
+     */
+    public synchronized boolean remove(Bitmap bitmap) {
+        final ArrayList<Bitmap> bucket = mBuckets.get(
+                bucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+        if (bucket == null || !removeIdentity(bucket, bitmap)) {
+            return false;
+        }
+        removeIdentity(mOrder, bitmap);
+        mSize -= bitmap.getByteCount();
+        return true;
+    }
+
+    /**
+     * Drop the oldest pooled bitmaps until the pool uses no more than
+     * {@code maxSize} bytes.
+     */
+    public synchronized void trimToSize(long maxSize) {
+        while (mSize > maxSize && !mOrder.isEmpty()) {
+            final Bitmap bitmap = mOrder.removeFirst();
+            removeIdentity(mBuckets.get(
+                    bucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())),
+                    bitmap);
+            mSize -= bitmap.getByteCount();
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Drop every pooled bitmap.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Returns the total size of pooled bitmaps in bytes.
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of bitmaps accepted by {@link #put}.
+     */
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get} was called.
+     */
+    public synchronized int requestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a bitmap.
+     */
+    public synchronized int reuseCount() {
+        return mReuseCount;
+    }
+
+    /**
+     * Returns the number of pooled bitmaps dropped to stay within budget.
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Returns the percentage of {@link #get} requests served from the pool.
+     */
+    public synchronized int reusePercent() {
+        return mRequestCount != 0 ? (100 * mReuseCount / mRequestCount) : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BitmapPool[size=%d,requests=%d,reuses=%d,reuseRate=%d%%]",
+                mSize, mRequestCount, mReuseCount, reusePercent());
+    }
+
+    private static boolean removeIdentity(List<Bitmap> list, Bitmap bitmap) {
+        final Iterator<Bitmap> it = list.iterator();
+        while (it.hasNext()) {
+            if (it.next() == bitmap) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Long bucketKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+}
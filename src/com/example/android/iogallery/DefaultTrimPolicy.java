@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.iogallery;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * {@link TrimPolicy} that shrinks the cache in proportion to memory pressure.
+ * Hiding the UI keeps every thumbnail, so a brief trip away from the app
+ * costs nothing to return from; only the system asking for memory back
+ * shrinks the cache, and only being next in line to be killed empties it.
+ */
+public class DefaultTrimPolicy implements TrimPolicy {
+    // Levels sent while the app is in the foreground, which arrive on newer
+    // platforms even though their ComponentCallbacks2 constants were only
+    // added in API 16, above this project's build target
+    private static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+
+    @Override
+    public long targetSize(int level, long size, long maxSize) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return maxSize / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return maxSize / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return size;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return maxSize / 4;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return maxSize / 2;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return maxSize * 3 / 4;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean shouldSpill(int level) {
+        // Once in the background the process may die at any moment, so keep
+        // what we can on disk for the next launch
+        return level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+    }
+}
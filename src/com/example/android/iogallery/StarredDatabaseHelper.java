@@ -19,34 +19,107 @@ package com.example.android.iogallery;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 
 /**
  * Database holding local starred state of photos from
- * {@link android.provider.MediaStore.Images}.
+ * {@link android.provider.MediaStore.Images}. Only starred photos have a row,
+ * so reading the starred set costs the number of starred photos rather than
+ * the number ever toggled.
  */
 public class StarredDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "IoGallery";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 3;
 
     public static final String TABLE_STARRED = "starred";
     public static final String COLUMN_ID = BaseColumns._ID;
+
+    /**
+     * Journal of recent changes to {@link #TABLE_STARRED}, so that readers
+     * holding an older copy can catch up without reading the whole table.
+     * Each change is a row with a new, increasing {@link #COLUMN_VERSION}.
+     */
+    public static final String TABLE_CHANGES = "starred_changes";
+    public static final String COLUMN_VERSION = "version";
     public static final String COLUMN_STARRED = "starred";
 
+    private static final String SQL_LATEST_VERSION = "SELECT IFNULL(MAX(" + COLUMN_VERSION
+            + "), 0) FROM " + TABLE_CHANGES;
+
+    /** Version 1 kept a row for every photo ever toggled, with this flag. */
+    private static final String COLUMN_STARRED_V1 = "starred";
+
     public StarredDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE " + TABLE_STARRED + " ("
-                + COLUMN_ID + " INTEGER PRIMARY KEY ON CONFLICT REPLACE, "
-                + COLUMN_STARRED + " INTEGER DEFAULT 0)");
+        createStarredTable(db, TABLE_STARRED);
+        createChangesTable(db);
+    }
+
+    private static void createStarredTable(SQLiteDatabase db, String table) {
+        // Integer primary key is the rowid itself, so the table is already
+        // clustered by photo id with no separate index to maintain
+        db.execSQL("CREATE TABLE " + table + " (" + COLUMN_ID + " INTEGER PRIMARY KEY)");
+    }
+
+    private static void createChangesTable(SQLiteDatabase db) {
+        // Versions are never reused, even once old changes are trimmed
+        db.execSQL("CREATE TABLE " + TABLE_CHANGES + " ("
+                + COLUMN_VERSION + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_ID + " INTEGER NOT NULL, "
+                + COLUMN_STARRED + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * Returns the version of the latest change journaled in {@code db}, or 0
+     * if there is none.
+     */
+    public static long queryLatestVersion(SQLiteDatabase db) {
+        final SQLiteStatement statement = db.compileStatement(SQL_LATEST_VERSION);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            // Readers never wait on writers, and commits append to the log
+            // instead of syncing a rollback journal
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_STARRED);
-        onCreate(db);
+        // Steps run in order inside the upgrade transaction, so a database
+        // several versions behind keeps its data, and a failed step leaves
+        // it untouched
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
+        }
+        if (oldVersion < 3) {
+            createChangesTable(db);
+        }
+    }
+
+    /**
+     * Keep only starred photos, dropping the rows of unstarred ones.
+     */
+    private static void upgradeToVersion2(SQLiteDatabase db) {
+        final String table = TABLE_STARRED + "_v2";
+        createStarredTable(db, table);
+        db.execSQL("INSERT INTO " + table + " (" + COLUMN_ID + ") SELECT " + COLUMN_ID
+                + " FROM " + TABLE_STARRED + " WHERE " + COLUMN_STARRED_V1 + " != 0"
+                + " ORDER BY " + COLUMN_ID);
+        db.execSQL("DROP TABLE " + TABLE_STARRED);
+        db.execSQL("ALTER TABLE " + table + " RENAME TO " + TABLE_STARRED);
     }
 }
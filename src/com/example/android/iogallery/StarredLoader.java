@@ -18,46 +18,182 @@ package com.example.android.iogallery;
 
 import static com.example.android.iogallery.StarredDatabaseHelper.COLUMN_ID;
 import static com.example.android.iogallery.StarredDatabaseHelper.COLUMN_STARRED;
+import static com.example.android.iogallery.StarredDatabaseHelper.COLUMN_VERSION;
+import static com.example.android.iogallery.StarredDatabaseHelper.TABLE_CHANGES;
 import static com.example.android.iogallery.StarredDatabaseHelper.TABLE_STARRED;
 
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
+import com.example.android.util.LongBitmapFile;
+import com.example.android.util.LongBooleanHashMap;
+import com.example.android.util.LongBooleanMap;
 import com.example.android.util.LongSparseBooleanArray;
 
 /**
- * Load {@link StarredDatabaseHelper} starred status into a
- * {@link LongSparseBooleanArray} for fast binding later.
+ * Load the photos starred in {@link StarredDatabaseHelper} into a
+ * {@link LongBooleanMap} for fast binding later: a compact
+ * {@link LongSparseBooleanArray} for small tables, or a
+ * {@link LongBooleanHashMap} once binary searching on every bind would cost
+ * more than the extra memory.
+ *
+ * <p>After the first load, the result is brought up to date by replaying
+ * only the changes journaled since, and the load costs a single lookup when
+ * nothing changed. Later loads update the delivered map in place, so callers
+ * must copy whatever they keep beyond {@code onLoadFinished}.
+ *
+ * <p>The first load may likewise start from a copy saved by an earlier run,
+ * which is only trusted when its version is still covered by the journal.
  */
-public class StarredLoader extends AsyncTaskLoader<LongSparseBooleanArray> {
+public class StarredLoader extends AsyncTaskLoader<LongBooleanMap> {
+    /** Most starred photos loaded into a {@link LongSparseBooleanArray}. */
+    private static final int SPARSE_ARRAY_MAX_ROWS = 256;
+
+    private static final String SQL_OLDEST_VERSION = "SELECT IFNULL(MIN(" + COLUMN_VERSION
+            + "), 0) FROM " + TABLE_CHANGES;
+
     private StarredDatabaseHelper mStarredDb;
+
+    /** Copy saved by an earlier run to start from, or null. */
+    private LongBitmapFile mSaved;
+
+    /** Result of the last load, and the latest change it includes. */
+    private volatile LongBooleanMap mResult;
+    private volatile long mVersion;
     
     public StarredLoader(Context context, StarredDatabaseHelper starredDb) {
+        this(context, starredDb, null);
+    }
+
+    /**
+     * @param saved starred photos as of a known database version, used
+     *     instead of reading the whole table if still valid. May be null.
+     */
+    public StarredLoader(Context context, StarredDatabaseHelper starredDb, LongBitmapFile saved) {
         super(context);
         mStarredDb = starredDb;
+        mSaved = saved;
     }
 
     @Override
-    public LongSparseBooleanArray loadInBackground() {
-        final Cursor cursor = mStarredDb.getReadableDatabase().query(TABLE_STARRED,
-                new String[] { COLUMN_ID, COLUMN_STARRED }, null, null, null, null, null);
+    public LongBooleanMap loadInBackground() {
+        final SQLiteDatabase db = mStarredDb.getReadableDatabase();
+        final long version = StarredDatabaseHelper.queryLatestVersion(db);
+        if (mResult == null && mSaved != null) {
+            // A copy newer than the database belongs to data since cleared
+            if (mSaved.getVersion() <= version) {
+                mResult = toMap(mSaved.getBitmap().toArray());
+                mVersion = mSaved.getVersion();
+            }
+            mSaved = null;
+        }
+        if (mResult != null && version == mVersion) {
+            return mResult;
+        }
+
+        // Changes older than the journal keeps are lost, so fall back to
+        // reading everything
+        if (mResult == null || queryForLong(db, SQL_OLDEST_VERSION) > mVersion + 1) {
+            // Changes committed after reading the version may or may not be
+            // in the table, but are replayed next time either way
+            mResult = loadAll(db);
+            mVersion = version;
+        } else {
+            mVersion = applyChanges(db, mResult, mVersion);
+        }
+        return mResult;
+    }
+
+    private static LongBooleanMap loadAll(SQLiteDatabase db) {
+        // Rows arrive in key order, which is free for the rowid primary key,
+        // so every row appends to a sparse array without searching or shifting
+        final Cursor cursor = db.query(TABLE_STARRED,
+                new String[] { COLUMN_ID }, null, null, null, null, COLUMN_ID);
         try {
-            final LongSparseBooleanArray result = new LongSparseBooleanArray(cursor.getCount());
-            while (cursor.moveToNext()) {
-                final long id = cursor.getLong(0);
-                final boolean starred = cursor.getInt(1) != 0;
-                result.put(id, starred);
+            final int count = cursor.getCount();
+            if (count <= SPARSE_ARRAY_MAX_ROWS) {
+                final LongSparseBooleanArray result = new LongSparseBooleanArray(count);
+                while (cursor.moveToNext()) {
+                    result.append(cursor.getLong(0), true);
+                }
+                return result;
+            } else {
+                final LongBooleanHashMap result = new LongBooleanHashMap(count);
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getLong(0), true);
+                }
+                return result;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns a map of every id in {@code ids}, which must be ascending, to
+     * true.
+     */
+    private static LongBooleanMap toMap(long[] ids) {
+        if (ids.length <= SPARSE_ARRAY_MAX_ROWS) {
+            final LongSparseBooleanArray result = new LongSparseBooleanArray(ids.length);
+            for (long id : ids) {
+                result.append(id, true);
             }
             return result;
+        } else {
+            final LongBooleanHashMap result = new LongBooleanHashMap(ids.length);
+            for (long id : ids) {
+                result.put(id, true);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Apply every change journaled after {@code version} to {@code result}.
+     *
+     * @return the latest change applied.
+     */
+    private static long applyChanges(SQLiteDatabase db, LongBooleanMap result, long version) {
+        final Cursor cursor = db.query(TABLE_CHANGES,
+                new String[] { COLUMN_VERSION, COLUMN_ID, COLUMN_STARRED },
+                COLUMN_VERSION + " > ?", new String[] { Long.toString(version) },
+                null, null, COLUMN_VERSION);
+        try {
+            while (cursor.moveToNext()) {
+                version = cursor.getLong(0);
+                if (cursor.getInt(2) != 0) {
+                    result.put(cursor.getLong(1), true);
+                } else {
+                    result.delete(cursor.getLong(1));
+                }
+            }
+            return version;
         } finally {
             cursor.close();
         }
     }
 
+    private static long queryForLong(SQLiteDatabase db, String sql) {
+        final SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
+        final LongBooleanMap result = mResult;
+        if (result != null) {
+            deliverResult(result);
+        }
+        // Cheap when nothing changed, since only the version is read
         forceLoad();
     }
 
@@ -71,5 +207,7 @@ public class StarredLoader extends AsyncTaskLoader<LongSparseBooleanArray> {
     protected void onReset() {
         super.onReset();
         cancelLoad();
+        mResult = null;
+        mVersion = 0;
     }
 }
@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.iogallery;
+
+import com.example.android.util.LongBitmap;
+import com.example.android.util.LongBitmapFile;
+import com.example.android.util.LongBooleanMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * In-memory starred state of photos, published as immutable versioned
+ * {@link Snapshot}s. Starring changes are applied here first, so the UI shows
+ * them at once, and persisted to {@link StarredDatabaseHelper} separately,
+ * which stays the durable copy and is only read to {@link #seed} the store.
+ *
+ * <p>Each change copies the current set, a {@link LongBitmap} costing a few
+ * bytes per starred photo, applies the change to the copy and publishes it as
+ * the next version, telling listeners which ids changed so that they refresh
+ * only those. A snapshot never changes once published, so it may be read
+ * from any thread.
+ *
+ * <p>A single instance is shared by the whole process through
+ * {@link #getInstance}, so it survives activity recreation. Other than
+ * {@link #getSnapshot}, methods must be called on the main thread.
+ */
+public class StarredStore {
+    /**
+     * Notified on the main thread when a new snapshot is published.
+     */
+    public interface Listener {
+        /**
+         * @param changed ids whose starred state differs from the previous
+         *     snapshot, or null when any may differ, such as after seeding.
+         */
+        void onStarredChanged(Snapshot snapshot, LongBitmap changed);
+    }
+
+    /**
+     * Immutable starred state at one version.
+     */
+    public static final class Snapshot {
+        private final long mVersion;
+        private final LongBitmap mStarred;
+
+        private Snapshot(long version, LongBitmap starred) {
+            mVersion = version;
+            mStarred = starred;
+        }
+
+        /**
+         * Returns the version of this snapshot, increasing with each change.
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        public boolean isStarred(long id) {
+            return mStarred.contains(id);
+        }
+
+        /**
+         * Returns the number of starred photos.
+         */
+        public int size() {
+            return mStarred.size();
+        }
+
+        /**
+         * Returns the ids of every starred photo, ascending.
+         */
+        public long[] toArray() {
+            return mStarred.toArray();
+        }
+
+        /**
+         * Atomically replace {@code file} with this snapshot, recording
+         * {@code version} as the database version it matches. Performs I/O.
+         */
+        public void writeTo(File file, long version) throws IOException {
+            LongBitmapFile.write(file, mStarred, version);
+        }
+    }
+
+    private static StarredStore sInstance;
+
+    private volatile Snapshot mSnapshot = new Snapshot(0, new LongBitmap());
+    private boolean mSeeded;
+
+    /** Changes applied before seeding, replayed on top of the seed. */
+    private final LongBitmap mPendingStarred = new LongBitmap();
+    private final LongBitmap mPendingUnstarred = new LongBitmap();
+
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    public static synchronized StarredStore getInstance() {
+        if (sInstance == null) {
+            sInstance = new StarredStore();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the current snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Returns whether the store has been seeded from the database.
+     */
+    public boolean isSeeded() {
+        return mSeeded;
+    }
+
+    /**
+     * Show the photos starred in {@code saved}, such as a copy written by an
+     * earlier run, until the store is seeded from the database. Changes
+     * applied meanwhile are kept and replayed on top of the seed. Ignored
+     * once seeded.
+     */
+    public void preview(LongBitmap saved) {
+        if (mSeeded) {
+            return;
+        }
+        final LongBitmap starred = saved.clone();
+        starred.or(mPendingStarred);
+        starred.andNot(mPendingUnstarred);
+        publish(starred, null);
+    }
+
+    /**
+     * Replace the contents of the store with the photos starred in
+     * {@code loaded}, as read from the database, then replay any changes
+     * applied meanwhile, since the read may have missed their writes. Only
+     * the first call has any effect.
+     */
+    public void seed(LongBooleanMap loaded) {
+        if (mSeeded) {
+            return;
+        }
+        mSeeded = true;
+
+        final LongBitmap starred = LongBitmap.of(loaded.keysMappedTo(true));
+        starred.or(mPendingStarred);
+        starred.andNot(mPendingUnstarred);
+        mPendingStarred.clear();
+        mPendingUnstarred.clear();
+        publish(starred, null);
+    }
+
+    /**
+     * Set the starred state of every photo in {@code ids}, publishing a new
+     * snapshot if any of them changed.
+     *
+     * @return the ids whose state changed, possibly none.
+     */
+    public LongBitmap apply(long[] ids, boolean starred) {
+        final Snapshot current = mSnapshot;
+        final LongBitmap changed = new LongBitmap();
+        for (long id : ids) {
+            if (current.isStarred(id) != starred) {
+                changed.add(id);
+            }
+        }
+
+        if (!mSeeded) {
+            final LongBitmap delta = LongBitmap.of(ids);
+            (starred ? mPendingStarred : mPendingUnstarred).or(delta);
+            (starred ? mPendingUnstarred : mPendingStarred).andNot(delta);
+        }
+
+        if (!changed.isEmpty()) {
+            final LongBitmap next = current.mStarred.clone();
+            if (starred) {
+                next.or(changed);
+            } else {
+                next.andNot(changed);
+            }
+            publish(next, changed);
+        }
+        return changed;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void publish(LongBitmap starred, LongBitmap changed) {
+        final Snapshot snapshot = new Snapshot(mSnapshot.mVersion + 1, starred);
+        mSnapshot = snapshot;
+        for (int i = mListeners.size() - 1; i >= 0; i--) {
+            mListeners.get(i).onStarredChanged(snapshot, changed);
+        }
+    }
+}
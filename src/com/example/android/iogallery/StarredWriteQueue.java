@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.iogallery;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.util.LongBooleanHashMap;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Write-behind queue of starred state changes, persisted by a single
+ * background thread through a {@link StarredWriter}. Changes queued for the
+ * same photo before they are written merge, the last one winning, so rapid
+ * star and unstar actions on overlapping selections write each row once.
+ *
+ * <p>Pending changes are written together {@link #FLUSH_DELAY_MILLIS} after
+ * the first of them is queued, or as soon as {@link #FLUSH_THRESHOLD} photos
+ * are pending, whichever comes first. Call {@link #flushAsync} to start
+ * writing them right away, such as before the process may be killed, without
+ * blocking the calling thread.
+ *
+ * <p>Every queue writes on the same thread, which lives as long as the
+ * process, so the changes of an activity still being written when it is
+ * recreated are persisted before those of its successor.
+ *
+ * <p>After each write, the whole starred set as of the last change written
+ * is also saved to a file, tagged with the database version it matches, so
+ * the next launch can show it before opening the database.
+ */
+public class StarredWriteQueue {
+    private static final String TAG = "IoGallery";
+
+    private static final long FLUSH_DELAY_MILLIS = 300;
+    private static final int FLUSH_THRESHOLD = 512;
+
+    private final StarredWriter mWriter;
+    private final File mSnapshotFile;
+    private final Handler mHandler;
+
+    private static HandlerThread sThread;
+
+    /** Guards pending changes and counters. */
+    private final Object mLock = new Object();
+    private LongBooleanHashMap mPending = new LongBooleanHashMap();
+    private StarredStore.Snapshot mPendingSnapshot;
+    private boolean mFlushScheduled;
+
+    private int mQueuedCount;
+    private int mMergedCount;
+    private int mWrittenCount;
+    private int mFlushCount;
+
+    /** Serializes writes between the writer thread and {@link #flush}. */
+    private final Object mWriteLock = new Object();
+
+    private volatile boolean mTransactionsEnabled = true;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param snapshotFile where to save the starred set after each write.
+     */
+    public StarredWriteQueue(StarredWriter writer, File snapshotFile) {
+        mWriter = writer;
+        mSnapshotFile = snapshotFile;
+        mHandler = new Handler(getWriterLooper());
+    }
+
+    private static synchronized Looper getWriterLooper() {
+        if (sThread == null) {
+            sThread = new HandlerThread("StarredWriter");
+            sThread.start();
+        }
+        return sThread.getLooper();
+    }
+
+    /**
+     * Queue the starred state of every photo in {@code photoIds} to be
+     * written.
+     *
+     * @param after every starred photo once this change is applied, or null
+     *     if unknown, such as before the store is seeded, in which case no
+     *     snapshot is saved until a later change.
+     */
+    public void enqueue(long[] photoIds, boolean starred, StarredStore.Snapshot after) {
+        synchronized (mLock) {
+            mPendingSnapshot = after;
+            for (long photoId : photoIds) {
+                if (mPending.containsKey(photoId)) {
+                    mMergedCount++;
+                }
+                mPending.put(photoId, starred);
+            }
+            mQueuedCount += photoIds.length;
+
+            if (mPending.size() >= FLUSH_THRESHOLD) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.post(mFlushRunnable);
+                mFlushScheduled = true;
+            } else if (!mFlushScheduled) {
+                mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
+                mFlushScheduled = true;
+            }
+        }
+    }
+
+    /**
+     * Start writing every pending change on the writer thread now, rather
+     * than after the usual delay. Returns without waiting for the write.
+     */
+    public void flushAsync() {
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+            mFlushScheduled = true;
+        }
+    }
+
+    /**
+     * Write every pending change now, on the calling thread, returning once
+     * they are persisted. Performs I/O.
+     */
+    public void flush() {
+        synchronized (mWriteLock) {
+            final LongBooleanHashMap pending;
+            final StarredStore.Snapshot snapshot;
+            synchronized (mLock) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+                if (mPending.size() == 0) {
+                    return;
+                }
+                pending = mPending;
+                snapshot = mPendingSnapshot;
+                mPending = new LongBooleanHashMap();
+                mPendingSnapshot = null;
+            }
+
+            final long start = System.nanoTime();
+            final int rows = mWriter.write(pending, mTransactionsEnabled);
+            final long delta = System.nanoTime() - start;
+
+            // Written only once the database holds every change it shows, so
+            // it never runs ahead of the version it is tagged with
+            if (snapshot != null) {
+                try {
+                    snapshot.writeTo(mSnapshotFile, mWriter.latestVersion());
+                } catch (IOException e) {
+                    Log.w(TAG, "Problem saving starred snapshot", e);
+                }
+            }
+
+            synchronized (mLock) {
+                mWrittenCount += rows;
+                mFlushCount++;
+                Log.d(TAG, "Persisting " + rows + " rows took " + (delta / 1000000) + "ms; "
+                        + mMergedCount + " of " + mQueuedCount + " changes merged, "
+                        + mWrittenCount + " rows in " + mFlushCount + " flushes");
+            }
+        }
+    }
+
+    /**
+     * Write every pending change on the writer thread, without waiting for
+     * it. Nothing may be queued afterwards.
+     */
+    public void quit() {
+        flushAsync();
+    }
+
+    /**
+     * Commit each row on its own when false, to demonstrate the cost.
+     */
+    public void setTransactionsEnabled(boolean enabled) {
+        mTransactionsEnabled = enabled;
+    }
+
+    /**
+     * Returns the number of changes queued by {@link #enqueue}.
+     */
+    public int queuedCount() {
+        synchronized (mLock) {
+            return mQueuedCount;
+        }
+    }
+
+    /**
+     * Returns the number of queued changes that replaced a pending change for
+     * the same photo rather than adding a row to write.
+     */
+    public int mergedCount() {
+        synchronized (mLock) {
+            return mMergedCount;
+        }
+    }
+
+    /**
+     * Returns the number of rows written.
+     */
+    public int writtenCount() {
+        synchronized (mLock) {
+            return mWrittenCount;
+        }
+    }
+
+    /**
+     * Returns the number of batches written.
+     */
+    public int flushCount() {
+        synchronized (mLock) {
+            return mFlushCount;
+        }
+    }
+}
@@ -0,0 +1,1002 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.iogallery;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.example.android.util.KeyListFile;
+import com.example.android.util.LruCache;
+import com.example.android.util.MappedDiskCache;
+import com.example.android.util.MissRatioEstimator;
+import com.example.android.util.RemovalPipeline;
+import com.example.android.util.SlabStore;
+import com.example.android.util.WTinyLfuPolicy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cache of {@link MediaStore.Images.Thumbnails} keyed by photo ID, using their
+ * memory footprint in bytes for sizing. Evictions use {@link WTinyLfuPolicy}
+ * so that a long fling does not flush thumbnails the user keeps returning to.
+ *
+ * <p>Misses are filled from a {@link MappedDiskCache} of compressed
+ * thumbnails, which survives process death and memory trims, before falling
+ * back to decoding from {@link MediaStore}. Concurrent misses for the same photo share a
+ * single load.
+ *
+ * <p>Bitmaps leaving the cache are handed to a {@link BitmapPool} for decodes
+ * to reuse, once no view displays them. Callers therefore {@link #acquire} or
+ * {@link #load} every bitmap they display and {@link #release} it when the
+ * view moves on. The pool's size is counted against the cache's budget.
+ * Evicted and removed bitmaps are handed over on a {@link RemovalPipeline}
+ * thread, keeping that work off the decoding and UI threads.
+ *
+ * <p>A single instance is shared by the whole process through
+ * {@link #getInstance}, so it survives activity recreation. Across process
+ * death, the ids of the hottest thumbnails are saved with
+ * {@link #saveHotKeys} and loaded again by {@link #warmUp}.
+ *
+ * <p>Between configurable bounds, {@link #adaptSize} grows the budget while
+ * a {@link MissRatioEstimator} predicts a worthwhile gain in hit ratio from
+ * doing so, and shrinks it while shrinking is predicted to cost almost
+ * nothing, such as when the whole album already fits.
+ *
+ * <p>Optionally, thumbnails evicted from the heap move to a {@link SlabStore}
+ * tier outside of the Java heap, enabled with {@link #setOffHeapTierSize},
+ * and are copied back into pooled bitmaps when needed again. This holds more
+ * thumbnails in memory without growing the heap the garbage collector scans.
+ */
+public class ThumbnailCache extends LruCache<Long, Bitmap> {
+    private static final String TAG = "IoGallery";
+
+    /** {@link MediaStore.Images.Thumbnails#MINI_KIND} is 512x384 ARGB. */
+    private static final int TYPICAL_THUMBNAIL_BYTES = 512 * 384 * 4;
+
+    private static final String DISK_CACHE_DIR = "thumbnails";
+    private static final String HOT_KEYS_FILE = "thumbnail_hot_keys";
+
+    /** Number of thumbnails remembered across launches and prefetched. */
+    private static final int HOT_KEY_COUNT = 64;
+    /**
+     * Disk blocks hold compressed thumbnails, which for a typical photo take
+     * a tenth or less of {@link #TYPICAL_THUMBNAIL_BYTES}, so this keeps
+     * around a thousand of them.
+     */
+    private static final long DISK_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final int DISK_BLOCK_QUALITY = 90;
+    private static final int DISK_BLOCK_BUFFER_BYTES = 64 * 1024;
+
+    /** Off-heap slabs hold several typical thumbnails each. */
+    private static final int OFF_HEAP_SLAB_BYTES = 4 * 1024 * 1024;
+    private static final int OFF_HEAP_PAGE_BYTES = 4 * 1024;
+
+    /** Cache operations whose removals may queue before callers block. */
+    private static final int REMOVAL_QUEUE_CAPACITY = 32;
+    private static final int REMOVAL_BATCH_SIZE = 16;
+
+    /**
+     * Block header in the disk and off-heap tiers: width, height, config code.
+     * Off-heap blocks follow it with raw pixels, disk blocks with the bitmap
+     * compressed as JPEG, or as PNG when it has alpha.
+     */
+    private static final int BLOCK_HEADER_SIZE = 12;
+
+    /** Configs that can be stored in blocks, indexed by their config code. */
+    private static final Bitmap.Config[] BLOCK_CONFIGS = {
+            Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565,
+            Bitmap.Config.ARGB_4444, Bitmap.Config.ALPHA_8 };
+
+    private static ThumbnailCache sInstance;
+
+    /** Budgets the estimator tracks, as multiples of the current budget. */
+    private static final double[] ESTIMATE_SCALES = { 0.75, 1, 1.25 };
+    private static final int ESTIMATE_SHRUNK = 0;
+    private static final int ESTIMATE_CURRENT = 1;
+    private static final int ESTIMATE_GROWN = 2;
+
+    /** Requests seen between decisions made by {@link #adaptSize}. */
+    private static final int ADAPT_MIN_REQUESTS = 256;
+    /** Hit ratio a quarter more budget must gain to be worth growing. */
+    private static final double ADAPT_GROW_GAIN = 0.02;
+    /** Hit ratio a quarter less budget may lose and still be worth shrinking. */
+    private static final double ADAPT_SHRINK_LOSS = 0.005;
+
+    public static final int ADAPT_KEPT = 0;
+    public static final int ADAPT_GREW = 1;
+    public static final int ADAPT_SHRANK = 2;
+
+    private final MissRatioEstimator<Long> mEstimator;
+    private final long mMinSize;
+    private final long mMaxSize;
+    private long mLastAdaptRequests;
+    private volatile int mLastAdaptDecision = ADAPT_KEPT;
+    private volatile TrimPolicy mTrimPolicy = new DefaultTrimPolicy();
+
+    private final ContentResolver mResolver;
+    private final File mDiskDir;
+    private final File mHotKeysFile;
+    private final AtomicBoolean mWarmUpStarted = new AtomicBoolean();
+
+    /** Attempts to load and hold a thumbnail before bypassing the cache. */
+    private static final int MAX_LOAD_ATTEMPTS = 2;
+
+    private final Object mDiskLock = new Object();
+    private MappedDiskCache mDisk;
+    private boolean mDiskFailed;
+
+    private final BitmapPool mPool = new BitmapPool();
+
+    private volatile SlabStore mOffHeap;
+
+    /** Whether the UI shows thumbnails through this cache. */
+    private volatile boolean mEnabled;
+
+    private final RemovalPipeline mRemovals = new RemovalPipeline(
+            "ThumbnailRemovals", REMOVAL_QUEUE_CAPACITY, REMOVAL_BATCH_SIZE);
+
+    /**
+     * Guards display counts, and ownership changes between this cache, the
+     * pool and displaying views.
+     */
+    private final Object mDisplayLock = new Object();
+    private final IdentityHashMap<Bitmap, Integer> mDisplayCounts =
+            new IdentityHashMap<Bitmap, Integer>();
+    /** Displayed bitmaps no longer held by the cache, pooled once hidden. */
+    private final IdentityHashMap<Bitmap, Boolean> mUnowned =
+            new IdentityHashMap<Bitmap, Boolean>();
+
+    /** Dimensions of the last decoded thumbnail, to guess a reuse bucket. */
+    private volatile int mLastWidth;
+    private volatile int mLastHeight;
+
+    public ThumbnailCache(Context context, long maxSizeBytes) {
+        this(context, maxSizeBytes, maxSizeBytes, maxSizeBytes);
+    }
+
+    /**
+     * @param sizeBytes initial budget.
+     * @param minSizeBytes smallest budget {@link #adaptSize} may choose.
+     * @param maxSizeBytes largest budget {@link #adaptSize} may choose.
+     */
+    public ThumbnailCache(
+            Context context, long sizeBytes, long minSizeBytes, long maxSizeBytes) {
+        this(context, sizeBytes, minSizeBytes, maxSizeBytes, new MissRatioEstimator<Long>(
+                new WTinyLfuPolicy<Long>(sizeBytes,
+                        (int) (maxSizeBytes / TYPICAL_THUMBNAIL_BYTES)),
+                sizeBytes, ESTIMATE_SCALES));
+    }
+
+    private ThumbnailCache(Context context, long sizeBytes, long minSizeBytes,
+            long maxSizeBytes, MissRatioEstimator<Long> estimator) {
+        super(sizeBytes, true, estimator);
+        if (minSizeBytes > sizeBytes || sizeBytes > maxSizeBytes) {
+            throw new IllegalArgumentException("sizeBytes outside of bounds");
+        }
+        mEstimator = estimator;
+        mMinSize = minSizeBytes;
+        mMaxSize = maxSizeBytes;
+        mResolver = context.getContentResolver();
+        mDiskDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+        mHotKeysFile = new File(context.getCacheDir(), HOT_KEYS_FILE);
+        setRemovalPipeline(mRemovals);
+    }
+
+    /**
+     * Returns the cache shared by this process, creating it on first use with
+     * half of the memory class of the device, free to adapt between an eighth
+     * and five eighths of it.
+     */
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            final ActivityManager am = (ActivityManager) appContext.getSystemService(
+                    Context.ACTIVITY_SERVICE);
+            final long memoryClassBytes = am.getMemoryClass() * 1024L * 1024;
+            sInstance = new ThumbnailCache(appContext, memoryClassBytes / 2,
+                    memoryClassBytes / 8, memoryClassBytes * 5 / 8);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached thumbnail for {@code id} without loading it, held for
+     * display until passed to {@link #release}.
+     */
+    public Bitmap acquire(long id) {
+        synchronized (mDisplayLock) {
+            final Bitmap bitmap = getIfPresent(id);
+            if (bitmap != null) {
+                retain(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Bulk version of {@link #acquire} for prefetching, looking up every id
+     * in {@code ids} with a single cache lock acquisition. Each thumbnail
+     * added to {@code out} is held for display until passed to
+     * {@link #release}, so {@code out} must not already hold any of the ids.
+     *
+     * <p>Prefetching neither counts as a hit nor tells the eviction policy,
+     * since most prefetched thumbnails are never shown. Pass those that are
+     * to {@link #recordShown}.
+     *
+     * @return the number of thumbnails found.
+     */
+    public int acquireAll(Collection<Long> ids, Map<Long, Bitmap> out) {
+        final HashMap<Long, Bitmap> found = new HashMap<Long, Bitmap>();
+        synchronized (mDisplayLock) {
+            peekAll(ids, found);
+            for (Bitmap bitmap : found.values()) {
+                retain(bitmap);
+            }
+        }
+        out.putAll(found);
+        return found.size();
+    }
+
+    /**
+     * Count a thumbnail prefetched by {@link #acquireAll} as accessed, once
+     * it is actually shown.
+     */
+    public void recordShown(long id) {
+        getIfPresent(id);
+    }
+
+    /**
+     * Returns the thumbnail for {@code id}, loading it if needed, held for
+     * display until passed to {@link #release}. Performs I/O, so call off the
+     * main thread.
+     */
+    public Bitmap load(long id) {
+        for (int attempt = 0; attempt < MAX_LOAD_ATTEMPTS; attempt++) {
+            final Bitmap bitmap = get(id);
+            if (bitmap == null) {
+                return null;
+            }
+
+            synchronized (mDisplayLock) {
+                if (peek(id) == bitmap || mUnowned.containsKey(bitmap)) {
+                    retain(bitmap);
+                    return bitmap;
+                } else if (mPool.remove(bitmap)) {
+                    // Evicted as soon as it was created, so take it back
+                    retain(bitmap);
+                    mUnowned.put(bitmap, Boolean.TRUE);
+                    return bitmap;
+                }
+            }
+
+            // Evicted and either already handed out for another decode or
+            // not yet released by the removal pipeline, so retry
+        }
+        return loadUncached(id);
+    }
+
+    /**
+     * Decode the thumbnail for {@code id} without caching it, held for display
+     * until passed to {@link #release}. Performs I/O, so call off the main
+     * thread.
+     */
+    public Bitmap loadUncached(long id) {
+        final Bitmap bitmap = decodeThumbnail(id);
+        if (bitmap != null) {
+            synchronized (mDisplayLock) {
+                retain(bitmap);
+                mUnowned.put(bitmap, Boolean.TRUE);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Release a bitmap returned by {@link #acquire}, {@link #load} or
+     * {@link #loadUncached}, once it is no longer displayed.
+     */
+    public void release(Bitmap bitmap) {
+        synchronized (mDisplayLock) {
+            final Integer count = mDisplayCounts.get(bitmap);
+            if (count == null) {
+                throw new IllegalStateException("Releasing bitmap that was never acquired");
+            }
+            if (count > 1) {
+                mDisplayCounts.put(bitmap, count - 1);
+                return;
+            }
+            mDisplayCounts.remove(bitmap);
+            if (mUnowned.remove(bitmap) != null) {
+                recycle(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Fill {@code out} with the ids of the most recently used thumbnails,
+     * most recent first, without counting an access. Suitable for persisting
+     * the hot set to warm the cache on a later launch.
+     *
+     * @return the number of ids written, at most {@code out.length}.
+     */
+    public int keysInAccessOrder(long[] out) {
+        final List<Long> keys = keysInAccessOrder(out.length);
+        final int count = keys.size();
+        for (int i = 0; i < count; i++) {
+            out[i] = keys.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Grow or shrink the budget by a quarter, within its bounds, when the
+     * estimated hit ratios favor it. Does nothing until enough requests have
+     * been seen since the last decision, so it is cheap to call periodically.
+     *
+     * @return {@link #ADAPT_GREW}, {@link #ADAPT_SHRANK}, or
+     *     {@link #ADAPT_KEPT} when the budget did not change.
+     */
+    public int adaptSize() {
+        final long requests = hitCount() + missCount();
+        final double shrunk;
+        final double current;
+        final double grown;
+        final long size;
+        synchronized (this) {
+            if (requests - mLastAdaptRequests < ADAPT_MIN_REQUESTS) {
+                return ADAPT_KEPT;
+            }
+            mLastAdaptRequests = requests;
+            shrunk = mEstimator.estimatedHitRatio(ESTIMATE_SHRUNK);
+            current = mEstimator.estimatedHitRatio(ESTIMATE_CURRENT);
+            grown = mEstimator.estimatedHitRatio(ESTIMATE_GROWN);
+            size = maxSize();
+        }
+
+        int decision = ADAPT_KEPT;
+        if (grown - current >= ADAPT_GROW_GAIN && size < mMaxSize) {
+            resize(Math.min(mMaxSize, size + size / 4));
+            decision = ADAPT_GREW;
+        } else if (current - shrunk <= ADAPT_SHRINK_LOSS && size > mMinSize) {
+            resize(Math.max(mMinSize, size - size / 4));
+            decision = ADAPT_SHRANK;
+        }
+        if (decision != ADAPT_KEPT) {
+            Log.d(TAG, "Thumbnail cache " + (decision == ADAPT_GREW ? "grew" : "shrank")
+                    + " to " + maxSize() + " bytes; estimated hit ratios " + shrunk + ", "
+                    + current + ", " + grown);
+        }
+        mLastAdaptDecision = decision;
+        return decision;
+    }
+
+    /**
+     * Returns the estimated hit ratios, from 0 to 1, at three quarters of the
+     * current budget, the current budget, and a quarter more.
+     */
+    public synchronized double[] estimatedHitRatios() {
+        return new double[] {
+                mEstimator.estimatedHitRatio(ESTIMATE_SHRUNK),
+                mEstimator.estimatedHitRatio(ESTIMATE_CURRENT),
+                mEstimator.estimatedHitRatio(ESTIMATE_GROWN) };
+    }
+
+    /**
+     * Returns the outcome of the last {@link #adaptSize} that made a
+     * decision.
+     */
+    public int lastAdaptDecision() {
+        return mLastAdaptDecision;
+    }
+
+    /**
+     * Set the policy deciding how far {@link #trimMemory} shrinks the cache.
+     */
+    public void setTrimPolicy(TrimPolicy policy) {
+        mTrimPolicy = policy;
+    }
+
+    /**
+     * Shrink the cache as decided by its {@link TrimPolicy} for an
+     * {@code onTrimMemory()} level. Thumbnails go in the order the eviction
+     * policy would evict them, so the least frequently used go first, but
+     * displayed thumbnails are kept since removing them frees nothing.
+     *
+     * <p>Thumbnails leave the cache before this returns, but anything that
+     * performs I/O or waits runs on {@code executor}: under enough pressure,
+     * writing trimmed thumbnails missing from the disk tier there before they
+     * are recycled, and trimming the pool and off-heap tier once removals
+     * are delivered. Safe to call from the main thread.
+     */
+    public void trimMemory(int level, Executor executor) {
+        final TrimPolicy policy = mTrimPolicy;
+        final long size = size();
+        final long target = Math.max(0, policy.targetSize(level, size, maxSize()));
+        if (target >= size) {
+            return;
+        }
+        final List<SpilledThumbnail> spilled = trimTo(target, policy.shouldSpill(level));
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                spillAll(spilled);
+
+                // Wait for trimmed bitmaps to reach the pool before trimming it
+                mRemovals.awaitDelivered();
+                mPool.trimToSize(Math.max(0, target - size()));
+
+                // Off-heap memory counts against the process all the same
+                final SlabStore offHeap = mOffHeap;
+                if (offHeap != null) {
+                    offHeap.trimToSize(offHeap.usedBytes() * target / size);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove thumbnails that are not displayed from the cache, in eviction
+     * order, until it is no larger than {@code target}.
+     *
+     * @return when {@code spill}, the removed thumbnails, each held like a
+     *     displayed bitmap until {@link #spillAll} writes it to disk.
+     */
+    private List<SpilledThumbnail> trimTo(long target, boolean spill) {
+        final ArrayList<Long> victims = new ArrayList<Long>();
+        final ArrayList<SpilledThumbnail> spilled = new ArrayList<SpilledThumbnail>();
+        long remaining = size();
+        for (Long id : keysInEvictionOrder(Integer.MAX_VALUE)) {
+            if (remaining <= target) {
+                break;
+            }
+            final Bitmap bitmap = peek(id);
+            if (bitmap == null) {
+                continue;
+            }
+            synchronized (mDisplayLock) {
+                if (mDisplayCounts.containsKey(bitmap)) {
+                    continue;
+                }
+                if (spill) {
+                    // Removal only recycles the bitmap once released
+                    retain(bitmap);
+                    spilled.add(new SpilledThumbnail(id, bitmap));
+                }
+            }
+            victims.add(id);
+            remaining -= bitmap.getByteCount();
+        }
+        removeVictims(victims);
+        return spilled;
+    }
+
+    /**
+     * Write each of {@code spilled} missing from the disk tier there, then
+     * release it for recycling. Performs I/O.
+     */
+    private void spillAll(List<SpilledThumbnail> spilled) {
+        final MappedDiskCache disk = spilled.isEmpty() ? null : getDiskCache();
+        for (SpilledThumbnail thumbnail : spilled) {
+            try {
+                if (disk != null && !disk.contains(thumbnail.id)) {
+                    writeBlock(disk, thumbnail.id, thumbnail.bitmap);
+                }
+            } finally {
+                release(thumbnail.bitmap);
+            }
+        }
+    }
+
+    /**
+     * Returns the pool of bitmaps available for reuse.
+     */
+    public BitmapPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * Set whether the UI should show thumbnails through this cache, kept here
+     * so that it survives activity recreation along with the cache itself.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Keep up to {@code maxBytes} of thumbnails evicted from the heap in an
+     * off-heap tier, rounded down to whole slabs, or stop using and clear the
+     * tier when 0. Thumbnails move between the tiers rather than being held
+     * by both.
+     */
+    public void setOffHeapTierSize(long maxBytes) {
+        final int slabs = (int) Math.min(Integer.MAX_VALUE, maxBytes / OFF_HEAP_SLAB_BYTES);
+        final SlabStore previous = mOffHeap;
+        mOffHeap = slabs > 0
+                ? new SlabStore(OFF_HEAP_SLAB_BYTES, OFF_HEAP_PAGE_BYTES, slabs) : null;
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * Returns the off-heap tier, or null when it is not used.
+     */
+    public SlabStore getOffHeapTier() {
+        return mOffHeap;
+    }
+
+    /**
+     * Drop every thumbnail held in memory, both on and off the heap. The
+     * heap is emptied before this returns, and the off-heap tier on
+     * {@code executor}, once evictions have landed there.
+     */
+    public void clearMemory(Executor executor) {
+        evictAll();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mRemovals.awaitDelivered();
+                final SlabStore offHeap = mOffHeap;
+                if (offHeap != null) {
+                    offHeap.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Thumbnail removed by {@link #trimMemory} that still has to be written
+     * to the disk tier.
+     */
+    private static class SpilledThumbnail {
+        final long id;
+        final Bitmap bitmap;
+
+        public SpilledThumbnail(long id, Bitmap bitmap) {
+            this.id = id;
+            this.bitmap = bitmap;
+        }
+    }
+
+    @Override
+    protected Bitmap create(Long key) {
+        final SlabStore offHeap = mOffHeap;
+        Bitmap result = null;
+        if (offHeap != null) {
+            result = takeOffHeap(offHeap, key);
+        }
+
+        final MappedDiskCache disk = result == null ? getDiskCache() : null;
+        if (disk != null) {
+            result = readBlock(disk, key);
+        }
+
+        if (result == null) {
+            result = decodeThumbnail(key);
+            if (result != null && disk != null) {
+                writeBlock(disk, key, result);
+            }
+        }
+
+        // Make room for the new thumbnail within the shared budget
+        if (result != null) {
+            mPool.trimToSize(maxSize() - size() - result.getByteCount());
+        }
+        return result;
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+        if (oldValue == newValue) {
+            return;
+        }
+        final SlabStore offHeap = mOffHeap;
+        if (evicted && offHeap != null) {
+            putOffHeap(offHeap, key, oldValue);
+        }
+        synchronized (mDisplayLock) {
+            if (mDisplayCounts.containsKey(oldValue)) {
+                mUnowned.put(oldValue, Boolean.TRUE);
+            } else {
+                recycle(oldValue);
+            }
+        }
+    }
+
+    @Override
+    protected int sizeOf(Long key, Bitmap value) {
+        return value.getByteCount();
+    }
+
+    private void retain(Bitmap bitmap) {
+        final Integer count = mDisplayCounts.get(bitmap);
+        mDisplayCounts.put(bitmap, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Offer a bitmap nobody references to the pool, which may only use
+     * whatever part of the budget the cache is not using.
+     */
+    private void recycle(Bitmap bitmap) {
+        if (mPool.put(bitmap)) {
+            mPool.trimToSize(maxSize() - size());
+        }
+    }
+
+    /**
+     * Decode from {@link MediaStore}, reusing a pooled bitmap when one matches
+     * the dimensions of the last decoded thumbnail.
+     */
+    private Bitmap decodeThumbnail(long id) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+
+        Bitmap reuse = null;
+        if (mLastWidth > 0) {
+            reuse = mPool.get(mLastWidth, mLastHeight, Bitmap.Config.ARGB_8888);
+            options.inBitmap = reuse;
+        }
+
+        Bitmap result;
+        try {
+            result = MediaStore.Images.Thumbnails.getThumbnail(
+                    mResolver, id, MediaStore.Images.Thumbnails.MINI_KIND, options);
+        } catch (IllegalArgumentException e) {
+            // Dimensions did not match the reused bitmap
+            result = null;
+        }
+
+        if (reuse != null && result != reuse) {
+            mPool.put(reuse);
+            if (result == null) {
+                options.inBitmap = null;
+                result = MediaStore.Images.Thumbnails.getThumbnail(
+                        mResolver, id, MediaStore.Images.Thumbnails.MINI_KIND, options);
+            }
+        }
+
+        if (result != null) {
+            mLastWidth = result.getWidth();
+            mLastHeight = result.getHeight();
+        }
+        return result;
+    }
+
+    /**
+     * Save the ids of the most recently used thumbnails, so that
+     * {@link #warmUp} can load them on a later launch. The ids are captured
+     * immediately, so the cache may be trimmed right after, and written to
+     * disk on {@code executor}.
+     */
+    public void saveHotKeys(Executor executor) {
+        final long[] ids = new long[HOT_KEY_COUNT];
+        final int count = keysInAccessOrder(ids);
+        if (count == 0) {
+            // Keep what the last session saved rather than forgetting it
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    KeyListFile.write(mHotKeysFile, ids, count);
+                } catch (IOException e) {
+                    Log.w(TAG, "Problem saving hot thumbnail ids", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the thumbnails saved by {@link #saveHotKeys} on {@code executor},
+     * least recently used first so that they keep their relative order in
+     * the cache. Views missing on the same thumbnails meanwhile share the
+     * load. Only the first call has any effect.
+     *
+     * <p>Like {@link #acquireAll}, warming up counts nothing in the stats and
+     * records no access with the eviction policy, so neither it nor
+     * {@link #adaptSize} mistakes the prefetch for demand.
+     */
+    public void warmUp(Executor executor) {
+        if (!mWarmUpStarted.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                final long[] ids = KeyListFile.read(mHotKeysFile, HOT_KEY_COUNT);
+                int loaded = 0;
+                for (int i = ids.length - 1; i >= 0; i--) {
+                    if (peek(ids[i]) == null && prefetch(ids[i])) {
+                        loaded++;
+                    }
+                }
+                final long delta = System.nanoTime() - start;
+                Log.d(TAG, "Prefetched " + loaded + " of " + ids.length + " thumbnails in "
+                        + (delta / 1000000) + "ms");
+            }
+        });
+    }
+
+    /**
+     * Persist the disk tier index. Performs I/O, so call off the main thread.
+     */
+    public void flush() {
+        synchronized (mDiskLock) {
+            if (mDisk != null) {
+                try {
+                    mDisk.flush();
+                } catch (IOException e) {
+                    Log.w(TAG, "Problem flushing thumbnail disk cache", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lazily open the disk tier on first use, since opening may need to scan
+     * for records written after its last index. Returns null if the disk tier
+     * is unavailable.
+     */
+    private MappedDiskCache getDiskCache() {
+        synchronized (mDiskLock) {
+            if (mDisk == null && !mDiskFailed) {
+                try {
+                    mDisk = MappedDiskCache.open(mDiskDir, DISK_CACHE_BYTES);
+                } catch (IOException e) {
+                    Log.w(TAG, "Thumbnail disk cache unavailable", e);
+                    mDiskFailed = true;
+                }
+            }
+            return mDisk;
+        }
+    }
+
+    private Bitmap readBlock(MappedDiskCache disk, long id) {
+        final ByteBuffer block;
+        try {
+            block = disk.get(id);
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading thumbnail " + id, e);
+            return null;
+        }
+        if (block == null) {
+            return null;
+        }
+
+        final Bitmap bitmap = decodeDiskBlock(block);
+        if (bitmap == null) {
+            disk.remove(id);
+        }
+        return bitmap;
+    }
+
+    private static void writeBlock(MappedDiskCache disk, long id, Bitmap bitmap) {
+        // Only these configs come back out of BitmapFactory as stored
+        final Bitmap.Config config = bitmap.getConfig();
+        if (config != Bitmap.Config.ARGB_8888 && config != Bitmap.Config.RGB_565) {
+            return;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.putInt(bitmap.getWidth());
+        header.putInt(bitmap.getHeight());
+        header.putInt(blockConfigCode(bitmap));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(DISK_BLOCK_BUFFER_BYTES);
+        out.write(header.array(), 0, BLOCK_HEADER_SIZE);
+        final Bitmap.CompressFormat format = bitmap.hasAlpha()
+                ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+        if (!bitmap.compress(format, DISK_BLOCK_QUALITY, out)) {
+            return;
+        }
+
+        try {
+            disk.put(id, ByteBuffer.wrap(out.toByteArray()));
+        } catch (IOException e) {
+            Log.w(TAG, "Problem writing thumbnail " + id, e);
+        }
+    }
+
+    /**
+     * Decode a disk block into a pooled bitmap when one matches, streaming
+     * straight from the mapped block, or return null if the block is
+     * malformed.
+     */
+    private Bitmap decodeDiskBlock(ByteBuffer block) {
+        if (block.remaining() < BLOCK_HEADER_SIZE) {
+            return null;
+        }
+
+        final int width = block.getInt();
+        final int height = block.getInt();
+        final int configCode = block.getInt();
+        if (width <= 0 || height <= 0 || configCode < 0 || configCode >= BLOCK_CONFIGS.length) {
+            return null;
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inPreferredConfig = BLOCK_CONFIGS[configCode];
+        final Bitmap reuse = mPool.get(width, height, options.inPreferredConfig);
+        options.inBitmap = reuse;
+
+        final ByteBuffer compressed = block.slice();
+        Bitmap result;
+        try {
+            result = BitmapFactory.decodeStream(
+                    new ByteBufferInputStream(compressed.duplicate()), null, options);
+        } catch (IllegalArgumentException e) {
+            // Decoded image did not match the reused bitmap
+            result = null;
+        }
+
+        if (reuse != null && result != reuse) {
+            mPool.put(reuse);
+            if (result == null) {
+                options.inBitmap = null;
+                result = BitmapFactory.decodeStream(
+                        new ByteBufferInputStream(compressed.duplicate()), null, options);
+            }
+        }
+
+        if (result != null && (result.getWidth() != width || result.getHeight() != height)) {
+            mPool.put(result);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Copy the thumbnail for {@code id} out of the off-heap tier into a
+     * pooled bitmap, removing it from the tier.
+     */
+    private Bitmap takeOffHeap(SlabStore offHeap, long id) {
+        synchronized (offHeap) {
+            final ByteBuffer block = offHeap.get(id);
+            if (block == null) {
+                return null;
+            }
+            final Bitmap bitmap = decodeBlock(block);
+            offHeap.remove(id);
+            return bitmap;
+        }
+    }
+
+    private static void putOffHeap(SlabStore offHeap, long id, Bitmap bitmap) {
+        final int configCode = blockConfigCode(bitmap);
+        if (configCode == -1) {
+            return;
+        }
+        synchronized (offHeap) {
+            // Encode straight into the slab, holding its lock while the view
+            // is in use
+            final ByteBuffer block = offHeap.reserve(
+                    id, BLOCK_HEADER_SIZE + bitmap.getByteCount());
+            if (block != null) {
+                encodeBlock(block, bitmap, configCode);
+            }
+        }
+    }
+
+    /**
+     * Decode an off-heap block of header and raw pixels into a pooled bitmap,
+     * or return null if the block is malformed.
+     */
+    private Bitmap decodeBlock(ByteBuffer block) {
+        if (block.remaining() < BLOCK_HEADER_SIZE) {
+            return null;
+        }
+
+        final int width = block.getInt();
+        final int height = block.getInt();
+        final int configCode = block.getInt();
+        if (width <= 0 || height <= 0 || configCode < 0 || configCode >= BLOCK_CONFIGS.length) {
+            return null;
+        }
+
+        final Bitmap.Config config = BLOCK_CONFIGS[configCode];
+        Bitmap bitmap = mPool.get(width, height, config);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        if (bitmap.getByteCount() != block.remaining()) {
+            mPool.put(bitmap);
+            return null;
+        }
+        bitmap.copyPixelsFromBuffer(block);
+        return bitmap;
+    }
+
+    private static void encodeBlock(ByteBuffer block, Bitmap bitmap, int configCode) {
+        block.putInt(bitmap.getWidth());
+        block.putInt(bitmap.getHeight());
+        block.putInt(configCode);
+        bitmap.copyPixelsToBuffer(block);
+    }
+
+    /**
+     * Returns the config code of {@code bitmap} in blocks, or -1 if its
+     * config cannot be stored.
+     */
+    private static int blockConfigCode(Bitmap bitmap) {
+        for (int i = 0; i < BLOCK_CONFIGS.length; i++) {
+            if (BLOCK_CONFIGS[i] == bitmap.getConfig()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, so that blocks mapped from disk
+     * decode without first being copied onto the heap.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer source;
+
+        public ByteBufferInputStream(ByteBuffer source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() {
+            return source.hasRemaining() ? source.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, source.remaining());
+            source.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return source.remaining();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.iogallery;
+
+/**
+ * Decides how far {@link ThumbnailCache#trimMemory} shrinks the cache for
+ * each {@link android.content.ComponentCallbacks2} trim level.
+ */
+public interface TrimPolicy {
+    /**
+     * Returns the size in bytes the cache should shrink to, or any value of
+     * at least {@code size} to leave it untouched.
+     *
+     * @param level trim level passed to {@code onTrimMemory()}.
+     * @param size current size of the cache in bytes.
+     * @param maxSize maximum size of the cache in bytes.
+     */
+    long targetSize(int level, long size, long maxSize);
+
+    /**
+     * Returns true if thumbnails trimmed at {@code level} should be written to
+     * the disk tier, when missing there, rather than discarded.
+     */
+    boolean shouldSpill(int level);
+}
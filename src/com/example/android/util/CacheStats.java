@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+/**
+ * Immutable snapshot of cache statistics over an interval, as returned by
+ * {@link LruCache#stats()}. A snapshot taken directly from a cache covers its
+ * whole lifetime; {@link #minus} gives the activity between two snapshots,
+ * from which rates such as {@link #hitsPerSecond} can be read.
+ */
+public final class CacheStats {
+    private final long timestampNanos;
+    private final long elapsedNanos;
+
+    private final long hitCount;
+    private final long missCount;
+    private final long createCount;
+    private final long coalescedCount;
+    private final long putCount;
+    private final long evictionCount;
+    private final long evictionSize;
+
+    private final LatencyHistogram.Snapshot getLatency;
+    private final LatencyHistogram.Snapshot createLatency;
+    private final LatencyHistogram.Snapshot evictLatency;
+
+    CacheStats(long timestampNanos, long elapsedNanos, long hitCount, long missCount,
+            long createCount, long coalescedCount, long putCount, long evictionCount,
+            long evictionSize, LatencyHistogram.Snapshot getLatency,
+            LatencyHistogram.Snapshot createLatency, LatencyHistogram.Snapshot evictLatency) {
+        this.timestampNanos = timestampNanos;
+        this.elapsedNanos = elapsedNanos;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.createCount = createCount;
+        this.coalescedCount = coalescedCount;
+        this.putCount = putCount;
+        this.evictionCount = evictionCount;
+        this.evictionSize = evictionSize;
+        this.getLatency = getLatency;
+        this.createLatency = createLatency;
+        this.evictLatency = evictLatency;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime} at which this snapshot was taken.
+     */
+    public long timestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * Returns the length of the interval covered by this snapshot.
+     */
+    public long elapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    public long createCount() {
+        return createCount;
+    }
+
+    public long coalescedCount() {
+        return coalescedCount;
+    }
+
+    public long putCount() {
+        return putCount;
+    }
+
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the total size of evicted entries, in the units of
+     * {@link LruCache#sizeOf}.
+     */
+    public long evictionSize() {
+        return evictionSize;
+    }
+
+    /**
+     * Returns the fraction of requests that were hits, or 1 when there were
+     * no requests.
+     */
+    public double hitRate() {
+        final long requests = requestCount();
+        return requests != 0 ? (double) hitCount / requests : 1.0;
+    }
+
+    public double hitsPerSecond() {
+        return perSecond(hitCount);
+    }
+
+    public double missesPerSecond() {
+        return perSecond(missCount);
+    }
+
+    /**
+     * Returns the rate at which entries were evicted, in the units of
+     * {@link LruCache#sizeOf} per second.
+     */
+    public double evictionSizePerSecond() {
+        return perSecond(evictionSize);
+    }
+
+    /**
+     * Returns the latency of {@link LruCache#get} calls, including any time
+     * spent creating or waiting for a missing value.
+     */
+    public LatencyHistogram.Snapshot getLatency() {
+        return getLatency;
+    }
+
+    /**
+     * Returns the latency of {@link LruCache#create} calls.
+     */
+    public LatencyHistogram.Snapshot createLatency() {
+        return createLatency;
+    }
+
+    /**
+     * Returns the time spent detaching each batch of evicted entries while
+     * holding the cache lock.
+     */
+    public LatencyHistogram.Snapshot evictLatency() {
+        return evictLatency;
+    }
+
+    /**
+     * Returns the activity between {@code earlier} and this snapshot.
+     */
+    public CacheStats minus(CacheStats earlier) {
+        return new CacheStats(timestampNanos, timestampNanos - earlier.timestampNanos,
+                hitCount - earlier.hitCount, missCount - earlier.missCount,
+                createCount - earlier.createCount, coalescedCount - earlier.coalescedCount,
+                putCount - earlier.putCount, evictionCount - earlier.evictionCount,
+                evictionSize - earlier.evictionSize, getLatency.minus(earlier.getLatency),
+                createLatency.minus(earlier.createLatency),
+                evictLatency.minus(earlier.evictLatency));
+    }
+
+    private double perSecond(long count) {
+        return elapsedNanos > 0 ? count * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CacheStats[hits=%d,misses=%d,creates=%d,coalesced=%d,puts=%d,"
+                + "evictions=%d,evictionSize=%d,get=%s,create=%s,evict=%s]",
+                hitCount, missCount, createCount, coalescedCount, putCount, evictionCount,
+                evictionSize, getLatency, createLatency, evictLatency);
+    }
+}
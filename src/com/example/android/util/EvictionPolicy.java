@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.util.List;
+
+/**
+ * Decides which entry {@link LruCache} evicts when it grows beyond its maximum
+ * size. A cache without a policy evicts its least recently used entry.
+ *
+ * <p>All methods are called while holding the cache lock, so implementations
+ * need no synchronization of their own, but should be quick.
+ */
+public interface EvictionPolicy<K> {
+    /**
+     * Called for every lookup of {@code key}, whether or not the cache held a
+     * value for it.
+     */
+    void recordAccess(K key, boolean hit);
+
+    /**
+     * Called when an entry for {@code key} is added to the cache.
+     */
+    void recordInsert(K key, int size);
+
+    /**
+     * Called when the size of the entry for {@code key} becomes known, for
+     * entries that were inserted with a provisional size of 0 while they
+     * waited to be weighed off-thread.
+     */
+    void recordResize(K key, int size);
+
+    /**
+     * Called when the entry for {@code key} leaves the cache for any reason
+     * other than being returned from {@link #selectVictim}.
+     */
+    void recordRemove(K key);
+
+    /**
+     * Returns the key of the entry to evict next, and forgets it. Only called
+     * while the cache holds at least one entry.
+     */
+    K selectVictim();
+
+    /**
+     * Returns up to {@code max} keys in the order {@link #selectVictim} would
+     * return them if nothing else changed, without forgetting any.
+     */
+    List<K> peekVictims(int max);
+
+    /**
+     * Called when the cache is resized, before it evicts down to its new
+     * maximum size.
+     */
+    void setMaxSize(long maxSize);
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact file holding an ordered list of {@code long} keys, such as the most
+ * recently used entries of a cache. The list is written atomically through a
+ * temporary file and protected by a CRC32, so readers see either a complete
+ * list or nothing.
+ */
+public class KeyListFile {
+    private static final int MAGIC = 0x4b4c5354;
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private KeyListFile() {
+    }
+
+    /**
+     * Atomically replace {@code file} with the first {@code count} keys of
+     * {@code keys}.
+     */
+    public static void write(File file, long[] keys, int count) throws IOException {
+        final File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        final FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            final CRC32 crc = new CRC32();
+            final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(fos), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(keys[i]);
+            }
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Returns up to {@code maxCount} keys from the start of the list in
+     * {@code file}, or an empty array if it is missing or corrupt.
+     */
+    public static long[] read(File file, int maxCount) {
+        DataInputStream in = null;
+        try {
+            final CRC32 crc = new CRC32();
+            in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), crc));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return new long[0];
+            }
+            final int count = in.readInt();
+            if (count < 0 || count > file.length() / 8) {
+                return new long[0];
+            }
+
+            final long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = in.readLong();
+            }
+            final int expectedCrc = (int) crc.getValue();
+            if (in.readInt() != expectedCrc) {
+                return new long[0];
+            }
+            return count > maxCount ? Arrays.copyOf(keys, maxCount) : keys;
+        } catch (FileNotFoundException e) {
+            return new long[0];
+        } catch (IOException e) {
+            return new long[0];
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of operation latencies in power-of-two nanosecond
+ * buckets. Bucket {@code i} counts latencies of at least {@code 2^(i-1)} and
+ * less than {@code 2^i} nanoseconds, so percentiles are accurate to within a
+ * factor of two, which is plenty to tell a hit from a decode.
+ *
+ * <p>Most operations land in the same few buckets, so each thread records
+ * into its own stripe of buckets, chosen like {@link StripedCounter} cells,
+ * and stripes are only added up when taking a {@link #snapshot}.
+ */
+public class LatencyHistogram {
+    /** Enough buckets to cover latencies up to about 9 minutes. */
+    static final int BUCKETS = 40;
+
+    /** Longs between stripe starts, padded so stripes never share a cache line. */
+    private static final int STRIPE_LENGTH = BUCKETS + 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(
+            StripedCounter.STRIPES * STRIPE_LENGTH);
+    private final StripedCounter totalNanos = new StripedCounter();
+
+    /**
+     * Record a single operation that took {@code nanos}.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        counts.incrementAndGet(StripedCounter.stripe() * STRIPE_LENGTH + bucket);
+        totalNanos.add(nanos);
+    }
+
+    /**
+     * Returns an immutable copy of the recorded latencies.
+     */
+    public Snapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            final int start = stripe * STRIPE_LENGTH;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] += counts.get(start + i);
+            }
+        }
+        return new Snapshot(copy, totalNanos.sum());
+    }
+
+    /**
+     * Immutable set of latency counts, as returned by {@link #snapshot}.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long totalNanos;
+        private final long count;
+
+        Snapshot(long[] counts, long totalNanos) {
+            this.counts = counts;
+            this.totalNanos = totalNanos;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+        }
+
+        /**
+         * Returns the number of recorded operations.
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Returns the mean latency in nanoseconds, or 0 if nothing was
+         * recorded.
+         */
+        public long meanNanos() {
+            return count != 0 ? totalNanos / count : 0;
+        }
+
+        /**
+         * Returns the upper bound, in nanoseconds, of the bucket holding the
+         * given percentile of operations, or 0 if nothing was recorded.
+         *
+         * @param percentile between 0 and 100.
+         */
+        public long percentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        /**
+         * Returns the operations recorded since {@code earlier} was taken.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            final long[] delta = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                delta[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(delta, totalNanos - earlier.totalNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Latency[count=%d,meanUs=%d,p50Us=%d,p99Us=%d]", count,
+                    meanNanos() / 1000, percentileNanos(50) / 1000, percentileNanos(99) / 1000);
+        }
+    }
+}
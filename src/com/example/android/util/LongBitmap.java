@@ -0,0 +1,572 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compressed set of {@code long} values, in the style of a Roaring bitmap.
+ * Values are grouped by their upper 48 bits into containers, each holding the
+ * lower 16 bits of up to 65536 values either as a sorted {@code char[]}, when
+ * sparse, or as a 65536-bit bitmap, when more than {@link #ARRAY_MAX} values
+ * make that smaller. Dense runs of ids, such as database row ids, cost about
+ * one bit each and sparse ones about two bytes each.
+ *
+ * <p>Lookups binary search the few container keys, then test a bit or binary
+ * search a short array. {@link #or} and {@link #andNot} work a container at a
+ * time, and 64 values per word within bitmaps.
+ */
+public class LongBitmap implements Cloneable {
+    /** Containers holding more values than this are bitmaps. */
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = (1 << 16) / 64;
+
+    private static final int SERIAL_MAGIC = 0x4c424d31;
+
+    /** Upper 48 bits of the values in each container, ascending. */
+    private long[] highs;
+    /** Sorted {@code char[]} or {@code long[]} bitmap of lower 16 bits. */
+    private Object[] containers;
+    private int[] cardinalities;
+    private int count;
+
+    public LongBitmap() {
+        highs = new long[4];
+        containers = new Object[4];
+        cardinalities = new int[4];
+    }
+
+    /**
+     * Returns a bitmap holding each of {@code values}.
+     */
+    public static LongBitmap of(long... values) {
+        final LongBitmap bitmap = new LongBitmap();
+        for (long value : values) {
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public LongBitmap clone() {
+        LongBitmap clone = null;
+        try {
+            clone = (LongBitmap) super.clone();
+            clone.highs = highs.clone();
+            clone.cardinalities = cardinalities.clone();
+            clone.containers = new Object[containers.length];
+            for (int i = 0; i < count; i++) {
+                clone.containers[i] = copyOf(containers[i]);
+            }
+        } catch (CloneNotSupportedException cnse) {
+            /* ignore */
+        }
+        return clone;
+    }
+
+    /**
+     * Returns whether {@code value} is in the set.
+     */
+    public boolean contains(long value) {
+        final int i = containerIndex(value >> 16);
+        return i >= 0 && containsLow(containers[i], cardinalities[i], (char) value);
+    }
+
+    /**
+     * Add {@code value} to the set, returning false if it was already there.
+     */
+    public boolean add(long value) {
+        final char low = (char) value;
+        int i = containerIndex(value >> 16);
+        if (i < 0) {
+            i = ~i;
+            insertContainer(i, value >> 16, new char[4], 0);
+        }
+
+        final int cardinality = cardinalities[i];
+        final Object container = containers[i];
+        if (container instanceof long[]) {
+            final long[] bits = (long[]) container;
+            if ((bits[low >>> 6] & (1L << low)) != 0) {
+                return false;
+            }
+            bits[low >>> 6] |= 1L << low;
+        } else {
+            char[] values = (char[]) container;
+            int j = Arrays.binarySearch(values, 0, cardinality, low);
+            if (j >= 0) {
+                return false;
+            }
+            j = ~j;
+            if (cardinality == ARRAY_MAX) {
+                final long[] bits = toBitmap(values, cardinality);
+                bits[low >>> 6] |= 1L << low;
+                containers[i] = bits;
+            } else {
+                if (cardinality == values.length) {
+                    values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+                    containers[i] = values;
+                }
+                System.arraycopy(values, j, values, j + 1, cardinality - j);
+                values[j] = low;
+            }
+        }
+        cardinalities[i] = cardinality + 1;
+        return true;
+    }
+
+    /**
+     * Remove {@code value} from the set, returning false if it was not there.
+     */
+    public boolean remove(long value) {
+        final int i = containerIndex(value >> 16);
+        if (i < 0) {
+            return false;
+        }
+
+        final char low = (char) value;
+        final int cardinality = cardinalities[i];
+        final Object container = containers[i];
+        if (container instanceof long[]) {
+            final long[] bits = (long[]) container;
+            if ((bits[low >>> 6] & (1L << low)) == 0) {
+                return false;
+            }
+            bits[low >>> 6] &= ~(1L << low);
+            if (cardinality - 1 == ARRAY_MAX) {
+                containers[i] = toArray(bits, ARRAY_MAX);
+            }
+        } else {
+            final char[] values = (char[]) container;
+            final int j = Arrays.binarySearch(values, 0, cardinality, low);
+            if (j < 0) {
+                return false;
+            }
+            System.arraycopy(values, j + 1, values, j, cardinality - j - 1);
+        }
+
+        if (cardinality == 1) {
+            removeContainer(i);
+        } else {
+            cardinalities[i] = cardinality - 1;
+        }
+        return true;
+    }
+
+    /**
+     * Add every value of {@code other} to this set.
+     */
+    public void or(LongBitmap other) {
+        final int capacity = Math.max(4, count + other.count);
+        final long[] newHighs = new long[capacity];
+        final Object[] newContainers = new Object[capacity];
+        final int[] newCardinalities = new int[capacity];
+
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < count || j < other.count) {
+            if (j == other.count || (i < count && highs[i] < other.highs[j])) {
+                newHighs[n] = highs[i];
+                newContainers[n] = containers[i];
+                newCardinalities[n] = cardinalities[i];
+                i++;
+            } else if (i == count || other.highs[j] < highs[i]) {
+                newHighs[n] = other.highs[j];
+                newContainers[n] = copyOf(other.containers[j]);
+                newCardinalities[n] = other.cardinalities[j];
+                j++;
+            } else {
+                final Object union = union(containers[i], cardinalities[i],
+                        other.containers[j], other.cardinalities[j]);
+                newHighs[n] = highs[i];
+                newContainers[n] = union;
+                newCardinalities[n] = cardinalityOf(union);
+                i++;
+                j++;
+            }
+            n++;
+        }
+
+        highs = newHighs;
+        containers = newContainers;
+        cardinalities = newCardinalities;
+        count = n;
+    }
+
+    /**
+     * Remove every value of {@code other} from this set.
+     */
+    public void andNot(LongBitmap other) {
+        int j = 0;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            while (j < other.count && other.highs[j] < highs[i]) {
+                j++;
+            }
+            Object container = containers[i];
+            int cardinality = cardinalities[i];
+            if (j < other.count && other.highs[j] == highs[i]) {
+                container = difference(container, cardinality,
+                        other.containers[j], other.cardinalities[j]);
+                cardinality = cardinalityOf(container);
+                if (cardinality == 0) {
+                    continue;
+                }
+            }
+            highs[n] = highs[i];
+            containers[n] = container;
+            cardinalities[n] = cardinality;
+            n++;
+        }
+        Arrays.fill(containers, n, count, null);
+        count = n;
+    }
+
+    /**
+     * Returns the number of values in the set.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            size += cardinalities[i];
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Remove every value from the set.
+     */
+    public void clear() {
+        Arrays.fill(containers, 0, count, null);
+        count = 0;
+    }
+
+    /**
+     * Returns every value in the set, ascending.
+     */
+    public long[] toArray() {
+        final long[] result = new long[size()];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            final long base = highs[i] << 16;
+            final Object container = containers[i];
+            if (container instanceof long[]) {
+                final long[] bits = (long[]) container;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = bits[w];
+                    while (word != 0) {
+                        result[n++] = base | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                final char[] values = (char[]) container;
+                for (int k = 0; k < cardinalities[i]; k++) {
+                    result[n++] = base | values[k];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the approximate heap footprint of this set in bytes.
+     */
+    public long sizeInBytes() {
+        long bytes = 16 + highs.length * (8L + 4 + 4) + 3 * 16;
+        for (int i = 0; i < count; i++) {
+            final Object container = containers[i];
+            bytes += 16 + (container instanceof long[]
+                    ? 8L * BITMAP_WORDS : 2L * ((char[]) container).length);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeTo} writes.
+     */
+    public int serializedSize() {
+        int size = 8;
+        for (int i = 0; i < count; i++) {
+            size += 12 + (cardinalities[i] > ARRAY_MAX ? 8 * BITMAP_WORDS : 2 * cardinalities[i]);
+        }
+        return size;
+    }
+
+    /**
+     * Write the set to {@code out} in a compact form, read back by
+     * {@link #readFrom}: a header, then for each container its key, its
+     * cardinality, and either its sorted values or its bitmap words, which
+     * the cardinality tells apart.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.putInt(SERIAL_MAGIC);
+        out.putInt(count);
+        for (int i = 0; i < count; i++) {
+            out.putLong(highs[i]);
+            out.putInt(cardinalities[i]);
+            final Object container = containers[i];
+            if (container instanceof long[]) {
+                for (long word : (long[]) container) {
+                    out.putLong(word);
+                }
+            } else {
+                final char[] values = (char[]) container;
+                for (int k = 0; k < cardinalities[i]; k++) {
+                    out.putChar(values[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a set written by {@link #writeTo} from {@code in}.
+     *
+     * @throws IllegalArgumentException if {@code in} does not hold a valid
+     *     set.
+     */
+    public static LongBitmap readFrom(ByteBuffer in) {
+        try {
+            if (in.getInt() != SERIAL_MAGIC) {
+                throw new IllegalArgumentException("Not a serialized LongBitmap");
+            }
+            final int count = in.getInt();
+            if (count < 0 || count > in.remaining() / 14) {
+                throw new IllegalArgumentException("Bad container count " + count);
+            }
+
+            final LongBitmap bitmap = new LongBitmap();
+            bitmap.highs = new long[Math.max(4, count)];
+            bitmap.containers = new Object[bitmap.highs.length];
+            bitmap.cardinalities = new int[bitmap.highs.length];
+            for (int i = 0; i < count; i++) {
+                final long high = in.getLong();
+                final int cardinality = in.getInt();
+                if ((i > 0 && high <= bitmap.highs[i - 1]) || cardinality <= 0
+                        || cardinality > 1 << 16) {
+                    throw new IllegalArgumentException("Bad container " + i);
+                }
+
+                final Object container;
+                if (cardinality > ARRAY_MAX) {
+                    final long[] bits = new long[BITMAP_WORDS];
+                    in.asLongBuffer().get(bits);
+                    in.position(in.position() + 8 * BITMAP_WORDS);
+                    container = bits;
+                } else {
+                    final char[] values = new char[cardinality];
+                    in.asCharBuffer().get(values);
+                    in.position(in.position() + 2 * cardinality);
+                    for (int k = 1; k < cardinality; k++) {
+                        if (values[k] <= values[k - 1]) {
+                            throw new IllegalArgumentException("Unsorted container " + i);
+                        }
+                    }
+                    container = values;
+                }
+                if (cardinalityOf(container) != cardinality) {
+                    throw new IllegalArgumentException("Bad cardinality in container " + i);
+                }
+
+                bitmap.highs[i] = high;
+                bitmap.containers[i] = container;
+                bitmap.cardinalities[i] = cardinality;
+                bitmap.count = i + 1;
+            }
+            return bitmap;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated LongBitmap", e);
+        }
+    }
+
+    private int containerIndex(long high) {
+        return Arrays.binarySearch(highs, 0, count, high);
+    }
+
+    private void insertContainer(int index, long high, Object container, int cardinality) {
+        if (count == highs.length) {
+            final int capacity = count * 2;
+            highs = Arrays.copyOf(highs, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+            cardinalities = Arrays.copyOf(cardinalities, capacity);
+        }
+        System.arraycopy(highs, index, highs, index + 1, count - index);
+        System.arraycopy(containers, index, containers, index + 1, count - index);
+        System.arraycopy(cardinalities, index, cardinalities, index + 1, count - index);
+        highs[index] = high;
+        containers[index] = container;
+        cardinalities[index] = cardinality;
+        count++;
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(highs, index + 1, highs, index, count - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, count - index - 1);
+        System.arraycopy(cardinalities, index + 1, cardinalities, index, count - index - 1);
+        count--;
+        containers[count] = null;
+    }
+
+    private static boolean containsLow(Object container, int cardinality, char low) {
+        if (container instanceof long[]) {
+            return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) container, 0, cardinality, low) >= 0;
+    }
+
+    /**
+     * Returns a container of the values in either {@code a} or {@code b}.
+     */
+    private static Object union(Object a, int aCardinality, Object b, int bCardinality) {
+        if (a instanceof char[] && b instanceof char[]) {
+            final char[] aValues = (char[]) a;
+            final char[] bValues = (char[]) b;
+            if (aCardinality + bCardinality <= ARRAY_MAX) {
+                final char[] merged = new char[aCardinality + bCardinality];
+                int i = 0;
+                int j = 0;
+                int n = 0;
+                while (i < aCardinality && j < bCardinality) {
+                    final char x = aValues[i];
+                    final char y = bValues[j];
+                    merged[n++] = x <= y ? x : y;
+                    if (x <= y) {
+                        i++;
+                    }
+                    if (y <= x) {
+                        j++;
+                    }
+                }
+                while (i < aCardinality) {
+                    merged[n++] = aValues[i++];
+                }
+                while (j < bCardinality) {
+                    merged[n++] = bValues[j++];
+                }
+                return n == merged.length ? merged : Arrays.copyOf(merged, n);
+            }
+            final long[] bits = toBitmap(aValues, aCardinality);
+            setAll(bits, bValues, bCardinality);
+            return compact(bits);
+        }
+
+        if (a instanceof char[]) {
+            final Object swap = a;
+            a = b;
+            b = swap;
+            bCardinality = aCardinality;
+        }
+        final long[] bits = ((long[]) a).clone();
+        if (b instanceof long[]) {
+            final long[] bBits = (long[]) b;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                bits[w] |= bBits[w];
+            }
+        } else {
+            setAll(bits, (char[]) b, bCardinality);
+        }
+        return bits;
+    }
+
+    /**
+     * Returns a container of the values in {@code a} but not in {@code b}.
+     */
+    private static Object difference(Object a, int aCardinality, Object b, int bCardinality) {
+        if (a instanceof char[]) {
+            final char[] values = (char[]) a;
+            final char[] result = new char[aCardinality];
+            int n = 0;
+            for (int i = 0; i < aCardinality; i++) {
+                if (!containsLow(b, bCardinality, values[i])) {
+                    result[n++] = values[i];
+                }
+            }
+            return n == result.length ? result : Arrays.copyOf(result, n);
+        }
+
+        final long[] bits = ((long[]) a).clone();
+        if (b instanceof long[]) {
+            final long[] bBits = (long[]) b;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                bits[w] &= ~bBits[w];
+            }
+        } else {
+            final char[] values = (char[]) b;
+            for (int i = 0; i < bCardinality; i++) {
+                bits[values[i] >>> 6] &= ~(1L << values[i]);
+            }
+        }
+        return compact(bits);
+    }
+
+    private static int cardinalityOf(Object container) {
+        if (container instanceof char[]) {
+            return ((char[]) container).length;
+        }
+        int cardinality = 0;
+        for (long word : (long[]) container) {
+            cardinality += Long.bitCount(word);
+        }
+        return cardinality;
+    }
+
+    /**
+     * Returns {@code bits}, or an exactly sized array container when that is
+     * smaller.
+     */
+    private static Object compact(long[] bits) {
+        final int cardinality = cardinalityOf(bits);
+        return cardinality > ARRAY_MAX ? bits : toArray(bits, cardinality);
+    }
+
+    private static long[] toBitmap(char[] values, int cardinality) {
+        final long[] bits = new long[BITMAP_WORDS];
+        setAll(bits, values, cardinality);
+        return bits;
+    }
+
+    private static void setAll(long[] bits, char[] values, int cardinality) {
+        for (int i = 0; i < cardinality; i++) {
+            bits[values[i] >>> 6] |= 1L << values[i];
+        }
+    }
+
+    private static char[] toArray(long[] bits, int cardinality) {
+        final char[] values = new char[cardinality];
+        int n = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                values[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+
+    private static Object copyOf(Object container) {
+        return container instanceof long[]
+                ? ((long[]) container).clone() : ((char[]) container).clone();
+    }
+}
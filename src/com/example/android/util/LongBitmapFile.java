@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * File holding a {@link LongBitmap} along with the version of the data it was
+ * taken from. The file is written atomically through a temporary file and
+ * protected by a CRC32, which is checked before the bitmap is decoded from a
+ * {@link MappedByteBuffer}, so readers see either a complete set or nothing.
+ */
+public class LongBitmapFile {
+    private static final int MAGIC = 0x4c424d46;
+    private static final int FORMAT_VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Magic, format version, data version and payload length. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    /** CRC of everything before it. */
+    private static final int TRAILER_SIZE = 4;
+
+    private final long version;
+    private final LongBitmap bitmap;
+
+    private LongBitmapFile(long version, LongBitmap bitmap) {
+        this.version = version;
+        this.bitmap = bitmap;
+    }
+
+    /**
+     * Returns the version passed to {@link #write}.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public LongBitmap getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * Atomically replace {@code file} with {@code bitmap}, recording
+     * {@code version} to tell readers which data it reflects.
+     */
+    public static void write(File file, LongBitmap bitmap, long version) throws IOException {
+        final int payloadLength = bitmap.serializedSize();
+        final ByteBuffer buffer = ByteBuffer.allocate(
+                HEADER_SIZE + payloadLength + TRAILER_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putLong(version);
+        buffer.putInt(payloadLength);
+        bitmap.writeTo(buffer);
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        final File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        final FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            fos.write(buffer.array());
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Returns the contents of {@code file}, or null if it is missing,
+     * corrupt, or written in another format.
+     */
+    public static LongBitmapFile read(File file) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            final FileChannel channel = in.getChannel();
+            final long fileLength = channel.size();
+            if (fileLength < HEADER_SIZE + TRAILER_SIZE || fileLength > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            final MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            final long version = buffer.getLong();
+            final int payloadLength = buffer.getInt();
+            if (payloadLength != fileLength - HEADER_SIZE - TRAILER_SIZE) {
+                return null;
+            }
+
+            final CRC32 crc = new CRC32();
+            final byte[] chunk = new byte[8192];
+            buffer.position(0);
+            int remaining = HEADER_SIZE + payloadLength;
+            while (remaining > 0) {
+                final int count = Math.min(remaining, chunk.length);
+                buffer.get(chunk, 0, count);
+                crc.update(chunk, 0, count);
+                remaining -= count;
+            }
+            if (buffer.getInt() != (int) crc.getValue()) {
+                return null;
+            }
+
+            buffer.position(HEADER_SIZE);
+            buffer.limit(HEADER_SIZE + payloadLength);
+            return new LongBitmapFile(version, LongBitmap.readFrom(buffer));
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
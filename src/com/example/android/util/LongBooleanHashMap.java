@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from {@code long} to {@code boolean}, using linear
+ * probing in parallel primitive arrays. Unlike {@link LongSparseBooleanArray},
+ * lookups, inserts and deletes take constant expected time regardless of
+ * size, at the cost of a table kept at most three quarters full.
+ *
+ * <p>Deletion shifts later entries of the probe run back into the freed slot
+ * instead of leaving a tombstone, so lookups never slow down as keys churn.
+ * Key 0 marks empty slots, so a mapping for key 0 is kept outside the table.
+ */
+public class LongBooleanHashMap implements LongBooleanMap {
+    private static final long EMPTY = 0;
+
+    /** Multiplier spreading keys over the table, 2^64 divided by the golden ratio. */
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private boolean[] values;
+    private int mask;
+    private int shift;
+    private int size;
+    private int resizeAt;
+
+    private boolean hasEmptyKey;
+    private boolean emptyKeyValue;
+
+    public LongBooleanHashMap() {
+        this(8);
+    }
+
+    /**
+     * @param expectedSize mappings the map can hold before growing.
+     */
+    public LongBooleanHashMap(int expectedSize) {
+        int capacity = 4;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    @Override
+    public boolean get(long key) {
+        return get(key, false);
+    }
+
+    @Override
+    public boolean get(long key, boolean valueIfKeyNotFound) {
+        if (key == EMPTY) {
+            return hasEmptyKey ? emptyKeyValue : valueIfKeyNotFound;
+        }
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            final long k = keys[i];
+            if (k == key) {
+                return values[i];
+            } else if (k == EMPTY) {
+                return valueIfKeyNotFound;
+            }
+        }
+    }
+
+    /**
+     * Returns whether there is a mapping from {@code key}.
+     */
+    public boolean containsKey(long key) {
+        if (key == EMPTY) {
+            return hasEmptyKey;
+        }
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            final long k = keys[i];
+            if (k == key) {
+                return true;
+            } else if (k == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void put(long key, boolean value) {
+        if (key == EMPTY) {
+            if (!hasEmptyKey) {
+                hasEmptyKey = true;
+                size++;
+            }
+            emptyKeyValue = value;
+            return;
+        }
+        int i = slot(key);
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    @Override
+    public void delete(long key) {
+        if (key == EMPTY) {
+            if (hasEmptyKey) {
+                hasEmptyKey = false;
+                size--;
+            }
+            return;
+        }
+        for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                size--;
+                shiftBack(i);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        hasEmptyKey = false;
+        size = 0;
+    }
+
+    @Override
+    public long[] keysMappedTo(boolean value) {
+        int count = hasEmptyKey && emptyKeyValue == value ? 1 : 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && values[i] == value) {
+                count++;
+            }
+        }
+        final long[] result = new long[count];
+        int n = 0;
+        if (hasEmptyKey && emptyKeyValue == value) {
+            result[n++] = EMPTY;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && values[i] == value) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fill the slot at {@code free} by moving back the next entry of its
+     * probe run that may legally live there, repeating for the slot that
+     * entry vacates, until the run ends.
+     */
+    private void shiftBack(int free) {
+        int i = free;
+        while (true) {
+            i = (i + 1) & mask;
+            final long k = keys[i];
+            if (k == EMPTY) {
+                keys[free] = EMPTY;
+                return;
+            }
+            // Entries whose home slot lies cyclically in (free, i] must stay
+            final int home = slot(k);
+            final boolean stays = free <= i
+                    ? free < home && home <= i
+                    : free < home || home <= i;
+            if (!stays) {
+                keys[free] = k;
+                values[free] = values[i];
+                free = i;
+            }
+        }
+    }
+
+    private int slot(long key) {
+        return (int) ((key * PHI) >>> shift);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new boolean[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        resizeAt = capacity * 3 / 4;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final boolean[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            final long k = oldKeys[j];
+            if (k != EMPTY) {
+                int i = slot(k);
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+/**
+ * Map from {@code long} to {@code boolean} without boxing, implemented by
+ * {@link LongSparseBooleanArray}, compact and sorted, and
+ * {@link LongBooleanHashMap}, with constant-time operations.
+ */
+public interface LongBooleanMap {
+    /**
+     * Returns the value mapped from {@code key}, or {@code false} if there is
+     * none.
+     */
+    boolean get(long key);
+
+    /**
+     * Returns the value mapped from {@code key}, or
+     * {@code valueIfKeyNotFound} if there is none.
+     */
+    boolean get(long key, boolean valueIfKeyNotFound);
+
+    /**
+     * Maps {@code key} to {@code value}, replacing any previous mapping.
+     */
+    void put(long key, boolean value);
+
+    /**
+     * Removes the mapping from {@code key}, if there was any.
+     */
+    void delete(long key);
+
+    /**
+     * Returns the number of mappings.
+     */
+    int size();
+
+    /**
+     * Removes every mapping.
+     */
+    void clear();
+
+    /**
+     * Returns every key mapped to {@code value}, in no particular order.
+     */
+    long[] keysMappedTo(boolean value);
+}
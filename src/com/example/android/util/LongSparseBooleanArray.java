@@ -19,7 +19,7 @@ package com.example.android.util;
 /**
  * Sparse array mapping {@code long} to {@code boolean}.
  */
-public class LongSparseBooleanArray implements Cloneable {
+public class LongSparseBooleanArray implements LongBooleanMap, Cloneable {
     public LongSparseBooleanArray() {
         this(10);
     }
@@ -30,6 +30,48 @@ public class LongSparseBooleanArray implements Cloneable {
         mSize = 0;
     }
 
+    /**
+     * Builds an array holding the first <code>count</code> mappings of the
+     * parallel arrays <code>keys</code> and <code>values</code>, in any order.
+     * When a key appears more than once, its last value wins, as if each
+     * mapping had been {@link #put} in turn. Sorts once rather than shifting
+     * on every insert, so takes O(n) time for sorted input and O(n log n)
+     * otherwise. The given arrays are not modified.
+     */
+    public static LongSparseBooleanArray build(long[] keys, boolean[] values, int count) {
+        long[] nkeys = new long[count];
+        boolean[] nvalues = new boolean[count];
+        System.arraycopy(keys, 0, nkeys, 0, count);
+        System.arraycopy(values, 0, nvalues, 0, count);
+
+        boolean sorted = true;
+        for (int i = 1; i < count && sorted; i++) {
+            sorted = nkeys[i - 1] <= nkeys[i];
+        }
+        if (!sorted) {
+            // Stable, so that the last of equal keys stays last
+            mergeSort(nkeys, nvalues, nkeys.clone(), nvalues.clone(), 0, count);
+        }
+
+        // Collapse equal keys, keeping the last value of each
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (n > 0 && nkeys[n - 1] == nkeys[i]) {
+                nvalues[n - 1] = nvalues[i];
+            } else {
+                nkeys[n] = nkeys[i];
+                nvalues[n] = nvalues[i];
+                n++;
+            }
+        }
+
+        LongSparseBooleanArray result = new LongSparseBooleanArray(0);
+        result.mKeys = nkeys;
+        result.mValues = nvalues;
+        result.mSize = n;
+        return result;
+    }
+
     @Override
     public LongSparseBooleanArray clone() {
         LongSparseBooleanArray clone = null;
@@ -92,7 +134,7 @@ public class LongSparseBooleanArray implements Cloneable {
             i = ~i;
 
             if (mSize >= mKeys.length) {
-                int n = mSize + 1;
+                int n = idealSize(mSize + 1);
 
                 long[] nkeys = new long[n];
                 boolean[] nvalues = new boolean[n];
@@ -166,6 +208,24 @@ public class LongSparseBooleanArray implements Cloneable {
         return -1;
     }
 
+    /**
+     * Returns every key mapped to the specified value, in ascending order.
+     */
+    public long[] keysMappedTo(boolean value) {
+        int count = 0;
+        for (int i = 0; i < mSize; i++)
+            if (mValues[i] == value)
+                count++;
+
+        long[] result = new long[count];
+        int n = 0;
+        for (int i = 0; i < mSize; i++)
+            if (mValues[i] == value)
+                result[n++] = mKeys[i];
+
+        return result;
+    }
+
     /**
      * Removes all key-value mappings from this SparseBooleanArray.
      */
@@ -173,6 +233,55 @@ public class LongSparseBooleanArray implements Cloneable {
         mSize = 0;
     }
 
+    /**
+     * Copies every mapping from <code>other</code> into this array,
+     * replacing the values of keys both contain. Merges the two sorted key
+     * sequences in a single O(n + m) pass.
+     */
+    public void putAll(LongSparseBooleanArray other) {
+        if (other.mSize == 0) {
+            return;
+        }
+        if (mSize == 0 || mKeys[mSize - 1] < other.mKeys[0]) {
+            for (int i = 0; i < other.mSize; i++) {
+                append(other.mKeys[i], other.mValues[i]);
+            }
+            return;
+        }
+
+        int n = idealSize(mSize + other.mSize);
+        long[] nkeys = new long[n];
+        boolean[] nvalues = new boolean[n];
+
+        int i = 0, j = 0, size = 0;
+        while (i < mSize && j < other.mSize) {
+            long a = mKeys[i];
+            long b = other.mKeys[j];
+            if (a < b) {
+                nkeys[size] = a;
+                nvalues[size++] = mValues[i++];
+            } else {
+                nkeys[size] = b;
+                nvalues[size++] = other.mValues[j++];
+                if (a == b) {
+                    i++;
+                }
+            }
+        }
+        for (; i < mSize; i++, size++) {
+            nkeys[size] = mKeys[i];
+            nvalues[size] = mValues[i];
+        }
+        for (; j < other.mSize; j++, size++) {
+            nkeys[size] = other.mKeys[j];
+            nvalues[size] = other.mValues[j];
+        }
+
+        mKeys = nkeys;
+        mValues = nvalues;
+        mSize = size;
+    }
+
     /**
      * Puts a key/value pair into the array, optimizing for the case where
      * the key is greater than all existing keys in the array.
@@ -185,7 +294,7 @@ public class LongSparseBooleanArray implements Cloneable {
 
         int pos = mSize;
         if (pos >= mKeys.length) {
-            int n = pos + 1;
+            int n = idealSize(pos + 1);
 
             long[] nkeys = new long[n];
             boolean[] nvalues = new boolean[n];
@@ -202,6 +311,40 @@ public class LongSparseBooleanArray implements Cloneable {
         mSize = pos + 1;
     }
     
+    /**
+     * Returns a capacity of at least <code>need</code>, leaving room to grow
+     * so that repeated inserts copy the arrays O(log n) times.
+     */
+    private static int idealSize(int need) {
+        return Math.max(need, need + (need >> 1));
+    }
+
+    /**
+     * Stable sort of <code>keys[from..to)</code> and the parallel
+     * <code>values</code>, using <code>srcKeys</code> and
+     * <code>srcValues</code>, initially equal copies, as scratch space.
+     */
+    private static void mergeSort(long[] keys, boolean[] values,
+            long[] srcKeys, boolean[] srcValues, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(srcKeys, srcValues, keys, values, from, mid);
+        mergeSort(srcKeys, srcValues, keys, values, mid, to);
+
+        int i = from, j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && srcKeys[i] <= srcKeys[j])) {
+                keys[k] = srcKeys[i];
+                values[k] = srcValues[i++];
+            } else {
+                keys[k] = srcKeys[j];
+                values[k] = srcValues[j++];
+            }
+        }
+    }
+
     private static int binarySearch(long[] a, int start, int len, long key) {
         int high = start + len, low = start - 1, guess;
 
@@ -19,8 +19,21 @@ package com.example.android.util;
 // NOTE: upstream of this class is android.util.LruCache, changes below
 // expose trimToSize() to be called externally.
 
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Static library version of {@link android.util.LruCache}. Used to write apps
@@ -30,29 +43,83 @@ import java.util.Map;
  * overview.
  */
 public class LruCache<K, V> {
-    private final LinkedHashMap<K, V> map;
+    private final HashMap<K, Node<K, V>> map;
+
+    /**
+     * Sentinel of the circular access-order list threaded through the
+     * entries of {@link #map}. The least recently used entry follows it and
+     * the most recently used entry precedes it. Iterators park cursor nodes
+     * in the list to remember their position while the lock is released.
+     */
+    private final Node<K, V> head = new Node<K, V>(null, null, 0);
+
+    /**
+     * Values currently being created, keyed by their key. Only allocated when
+     * create coalescing is enabled.
+     */
+    private final HashMap<K, CreateTask> inFlight;
+
+    /** Chooses eviction victims, or null to evict least recently used. */
+    private final EvictionPolicy<K> policy;
+
+    /** Runs eviction callbacks, or null to run them on the evicting thread. */
+    private volatile Executor evictionExecutor;
+
+    /** Delivers every removal callback, or null to use the above. */
+    private volatile RemovalPipeline removalPipeline;
+
+    /** Runs {@link #sizeOf} for new entries, or null to run it inline. */
+    private volatile Executor weighExecutor;
 
     /** Size of this cache in units. Not necessarily the number of elements. */
-    private int size;
-    private int maxSize;
+    private long size;
+    /** Changed by {@link #resize} under the lock, so read through {@link #maxSize()}. */
+    private long maxSize;
 
-    private int putCount;
-    private int createCount;
-    private int evictionCount;
-    private int hitCount;
-    private int missCount;
+    // Statistics are kept outside the lock so that reading them never
+    // contends with cache operations
+    private final long createdNanos = System.nanoTime();
+    private final StripedCounter putCount = new StripedCounter();
+    private final StripedCounter createCount = new StripedCounter();
+    private final StripedCounter evictionCount = new StripedCounter();
+    private final StripedCounter evictionSize = new StripedCounter();
+    private final StripedCounter hitCount = new StripedCounter();
+    private final StripedCounter missCount = new StripedCounter();
+    private final StripedCounter coalescedCount = new StripedCounter();
+    private final LatencyHistogram getLatency = new LatencyHistogram();
+    private final LatencyHistogram createLatency = new LatencyHistogram();
+    private final LatencyHistogram evictLatency = new LatencyHistogram();
 
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
      *     the maximum number of entries in the cache. For all other caches,
      *     this is the maximum sum of the sizes of the entries in this cache.
      */
-    public LruCache(int maxSize) {
+    public LruCache(long maxSize) {
+        this(maxSize, false);
+    }
+
+    /**
+     * @param coalesceCreates when true, concurrent misses for the same key
+     *     wait for a single call to {@link #create} instead of each creating
+     *     and then discarding their own value.
+     */
+    public LruCache(long maxSize, boolean coalesceCreates) {
+        this(maxSize, coalesceCreates, null);
+    }
+
+    /**
+     * @param policy decides which entries to evict when the cache is full, or
+     *     null to evict the least recently used entry.
+     */
+    public LruCache(long maxSize, boolean coalesceCreates, EvictionPolicy<K> policy) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+        this.map = new HashMap<K, Node<K, V>>();
+        this.inFlight = coalesceCreates ? new HashMap<K, CreateTask>() : null;
+        this.policy = policy;
     }
 
     /**
@@ -66,45 +133,280 @@ public class LruCache<K, V> {
             throw new NullPointerException("key == null");
         }
 
+        final long start = System.nanoTime();
+        try {
+            return getOrCreate(key);
+        } finally {
+            getLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private V getOrCreate(K key) {
         V mapValue;
+        CreateTask task = null;
+        boolean owner = false;
+        synchronized (this) {
+            mapValue = valueOf(access(key));
+            if (policy != null) {
+                policy.recordAccess(key, mapValue != null);
+            }
+            if (mapValue == null && inFlight != null) {
+                task = inFlight.get(key);
+                if (task == null) {
+                    task = new CreateTask(key, true);
+                    inFlight.put(key, task);
+                    owner = true;
+                }
+            }
+        }
+
+        if (mapValue != null) {
+            hitCount.increment();
+            return mapValue;
+        }
+        missCount.increment();
+
+        if (task == null) {
+            return createAndCache(key, true);
+        }
+
+        // Either run the single create() for this key ourselves, or wait for
+        // the thread that is already running it
+        if (owner) {
+            task.run();
+        } else {
+            coalescedCount.increment();
+        }
+        return getUninterruptibly(task);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache, without
+     * calling {@link #create}. If a value was returned, it is moved to the head
+     * of the queue and counted as a hit. Misses are not counted, since callers
+     * typically follow up with {@link #get} or {@link #getAsync}, which will.
+     */
+    public final V getIfPresent(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final V mapValue;
         synchronized (this) {
-            mapValue = map.get(key);
+            mapValue = valueOf(access(key));
+            if (mapValue != null && policy != null) {
+                policy.recordAccess(key, true);
+            }
+        }
+        if (mapValue != null) {
+            hitCount.increment();
+        }
+        return mapValue;
+    }
+
+    /**
+     * Bulk version of {@link #getIfPresent}, looking up every key in
+     * {@code keys} under a single lock acquisition. Cached values are added to
+     * {@code out}, moved to the head of the queue and counted as hits.
+     *
+     * @return the number of keys found in the cache.
+     */
+    public final int getAll(Iterable<? extends K> keys, Map<? super K, ? super V> out) {
+        int found = 0;
+        synchronized (this) {
+            for (K key : keys) {
+                if (key == null) {
+                    throw new NullPointerException("key == null");
+                }
+                final Node<K, V> node = access(key);
+                if (node != null) {
+                    if (policy != null) {
+                        policy.recordAccess(key, true);
+                    }
+                    out.put(key, node.value);
+                    found++;
+                }
+            }
+        }
+        hitCount.add(found);
+        return found;
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache, without
+     * calling {@link #create}, counting a hit or miss, or informing the
+     * eviction policy.
+     */
+    public synchronized final V peek(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return valueOf(map.get(key));
+    }
+
+    /**
+     * Bulk version of {@link #peek}, looking up every key in {@code keys}
+     * under a single lock acquisition. Suitable for prefetching values that
+     * may never be used, since nothing is counted or reordered; callers that
+     * do use a value should count it with {@link #getIfPresent}.
+     *
+     * @return the number of keys found in the cache.
+     */
+    public final int peekAll(Iterable<? extends K> keys, Map<? super K, ? super V> out) {
+        int found = 0;
+        synchronized (this) {
+            for (K key : keys) {
+                if (key == null) {
+                    throw new NullPointerException("key == null");
+                }
+                final V value = valueOf(map.get(key));
+                if (value != null) {
+                    out.put(key, value);
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Creates and caches the value for {@code key} unless it is already
+     * cached. Suitable for warming the cache with values that may never be
+     * used, since no hit, miss or create is counted and no access is recorded
+     * with the eviction policy; callers that do use the value should count it
+     * with {@link #getIfPresent}. When create coalescing is enabled, a create
+     * already pending for {@code key} is shared.
+     *
+     * @return true if a value is cached for {@code key}.
+     */
+    public final boolean prefetch(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        CreateTask task = null;
+        boolean owner = false;
+        synchronized (this) {
+            if (map.containsKey(key)) {
+                return true;
+            }
+            if (inFlight != null) {
+                task = inFlight.get(key);
+                if (task == null) {
+                    task = new CreateTask(key, false);
+                    inFlight.put(key, task);
+                    owner = true;
+                }
+            }
+        }
+
+        if (task == null) {
+            return createAndCache(key, false) != null;
+        }
+        if (owner) {
+            task.run();
+        }
+        return getUninterruptibly(task) != null;
+    }
+
+    /**
+     * Asynchronous version of {@link #get}. A cached value is returned as an
+     * already completed {@link Future}. Otherwise {@link #create} is run on
+     * {@code executor}; when create coalescing is enabled, callers missing on
+     * the same key share the same pending {@link Future}.
+     */
+    public final Future<V> getAsync(K key, Executor executor) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        CreateTask task;
+        synchronized (this) {
+            final V mapValue = valueOf(access(key));
+            if (policy != null) {
+                policy.recordAccess(key, mapValue != null);
+            }
             if (mapValue != null) {
-                hitCount++;
-                return mapValue;
+                hitCount.increment();
+                final FutureTask<V> done = new FutureTask<V>(NO_OP, mapValue);
+                done.run();
+                return done;
+            }
+            missCount.increment();
+
+            if (inFlight != null) {
+                task = inFlight.get(key);
+                if (task != null) {
+                    coalescedCount.increment();
+                    return task;
+                }
+            }
+
+            task = new CreateTask(key, true);
+            if (inFlight != null) {
+                inFlight.put(key, task);
             }
-            missCount++;
         }
 
-        /*
-         * Attempt to create a value. This may take a long time, and the map
-         * may be different when create() returns. If a conflicting value was
-         * added to the map while create() was working, we leave that value in
-         * the map and release the created value.
-         */
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            // Cancelling clears the in-flight entry so later misses retry
+            task.cancel(false);
+            throw e;
+        }
+        return task;
+    }
 
+    /**
+     * Attempt to create a value. This may take a long time, and the map may be
+     * different when create() returns. If a conflicting value was added to the
+     * map while create() was working, we leave that value in the map and
+     * release the created value.
+     *
+     * @param counted whether to count the create in the statistics.
+     */
+    private V createAndCache(K key, boolean counted) {
+        V mapValue;
+        final long start = System.nanoTime();
         V createdValue = create(key);
+        if (counted) {
+            createLatency.record(System.nanoTime() - start);
+        }
         if (createdValue == null) {
             return null;
         }
+        if (counted) {
+            createCount.increment();
+        }
 
+        final Executor weigher = weighExecutor;
+        final Node<K, V> node = newNode(key, createdValue, weigher);
         synchronized (this) {
-            createCount++;
-            mapValue = map.put(key, createdValue);
+            final Node<K, V> mapNode = access(key);
 
-            if (mapValue != null) {
-                // There was a conflict so undo that last put
-                map.put(key, mapValue);
+            if (mapNode != null) {
+                // There was a conflict so keep the value already cached
+                mapValue = mapNode.value;
             } else {
-                size += safeSizeOf(key, createdValue);
+                mapValue = null;
+                map.put(key, node);
+                linkLast(node);
+                size += node.weight;
+                if (policy != null) {
+                    policy.recordInsert(key, node.weight);
+                }
             }
         }
 
         if (mapValue != null) {
-            entryRemoved(false, key, createdValue, mapValue);
+            dispatchRemoval(key, createdValue, mapValue);
             return mapValue;
         } else {
-            trimToSize(maxSize);
+            if (weigher != null) {
+                weighLater(key, node, weigher);
+            }
+            trimToSize(maxSize());
             return createdValue;
         }
     }
@@ -120,52 +422,276 @@ public class LruCache<K, V> {
             throw new NullPointerException("key == null || value == null");
         }
 
-        V previous;
+        putCount.increment();
+
+        final Executor weigher = weighExecutor;
+        final Node<K, V> node = newNode(key, value, weigher);
+        Node<K, V> previous;
         synchronized (this) {
-            putCount++;
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
+            size += node.weight;
+            previous = map.put(key, node);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                unlink(previous);
+                size -= previous.weight;
+                previous.removed = true;
             }
+            linkLast(node);
+            if (policy != null) {
+                if (previous != null) {
+                    policy.recordRemove(key);
+                }
+                policy.recordInsert(key, node.weight);
+            }
+        }
+
+        if (weigher != null) {
+            weighLater(key, node, weigher);
         }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, value);
+            dispatchRemoval(key, previous.value, value);
         }
 
-        trimToSize(maxSize);
-        return previous;
+        trimToSize(maxSize());
+        return valueOf(previous);
     }
 
     /**
+     * Caches every entry of {@code entries} under a single lock acquisition,
+     * then trims the cache once. Equivalent to calling {@link #put} for each
+     * entry, in iteration order.
+     */
+    public final void putAll(Map<? extends K, ? extends V> entries) {
+        final int count = entries.size();
+        final Executor weigher = weighExecutor;
+        final ArrayList<K> keys = new ArrayList<K>(count);
+        final ArrayList<Node<K, V>> nodes = new ArrayList<Node<K, V>>(count);
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            final K key = entry.getKey();
+            final V value = entry.getValue();
+            if (key == null || value == null) {
+                throw new NullPointerException("key == null || value == null");
+            }
+            keys.add(key);
+            nodes.add(newNode(key, value, weigher));
+        }
+        putCount.add(count);
+
+        final ArrayList<Node<K, V>> replaced = new ArrayList<Node<K, V>>(count);
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                final K key = keys.get(i);
+                final Node<K, V> node = nodes.get(i);
+                size += node.weight;
+                final Node<K, V> previous = map.put(key, node);
+                if (previous != null) {
+                    unlink(previous);
+                    size -= previous.weight;
+                    previous.removed = true;
+                }
+                linkLast(node);
+                replaced.add(previous);
+                if (policy != null) {
+                    if (previous != null) {
+                        policy.recordRemove(key);
+                    }
+                    policy.recordInsert(key, node.weight);
+                }
+            }
+        }
+
+        ArrayList<K> replacedKeys = null;
+        ArrayList<V> oldValues = null;
+        ArrayList<V> newValues = null;
+        for (int i = 0; i < count; i++) {
+            if (weigher != null) {
+                weighLater(keys.get(i), nodes.get(i), weigher);
+            }
+            final Node<K, V> previous = replaced.get(i);
+            if (previous != null) {
+                if (replacedKeys == null) {
+                    replacedKeys = new ArrayList<K>();
+                    oldValues = new ArrayList<V>();
+                    newValues = new ArrayList<V>();
+                }
+                replacedKeys.add(keys.get(i));
+                oldValues.add(previous.value);
+                newValues.add(nodes.get(i).value);
+            }
+        }
+        if (replacedKeys != null) {
+            dispatchRemovals(false, replacedKeys, oldValues, newValues);
+        }
+
+        trimToSize(maxSize());
+    }
+
+    /**
+     * Call {@link #sizeOf} for new entries on {@code executor} instead of the
+     * thread adding them, or inline when null. Use this when sizing a value is
+     * expensive. Until it has been sized, an entry counts as size 0 and so
+     * does not cause evictions.
+     */
+    public final void setWeighExecutor(Executor executor) {
+        weighExecutor = executor;
+    }
+
+    private Node<K, V> newNode(K key, V value, Executor weigher) {
+        return new Node<K, V>(key, value, weigher == null ? safeSizeOf(key, value) : 0);
+    }
+
+    private void weighLater(final K key, final Node<K, V> node, Executor weigher) {
+        weigher.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int weight = safeSizeOf(key, node.value);
+                synchronized (LruCache.this) {
+                    if (node.removed) {
+                        return;
+                    }
+                    node.weight = weight;
+                    size += weight;
+                    if (policy != null) {
+                        policy.recordResize(key, weight);
+                    }
+                }
+                trimToSize(maxSize());
+            }
+        });
+    }
+
+    /**
+     * Deliver {@link #entryRemoved} callbacks for evictions on
+     * {@code executor} instead of the thread that triggered them, or inline
+     * when null. Each batch of evictions is delivered as a single task.
+     */
+    public final void setEvictionExecutor(Executor executor) {
+        evictionExecutor = executor;
+    }
+
+    /**
+     * Publish every {@link #entryRemoved} callback, whether for an eviction,
+     * removal or replacement, to {@code pipeline} for its listener thread to
+     * deliver, or deliver them as configured by {@link #setEvictionExecutor}
+     * when null. Each cache operation publishes its removals as a single
+     * notification, and blocks while the pipeline is full.
+     */
+    public final void setRemovalPipeline(RemovalPipeline pipeline) {
+        removalPipeline = pipeline;
+    }
+
+    /**
+     * Evict entries until the cache is no larger than {@code maxSize}. The
+     * whole batch of victims is detached under a single lock acquisition, and
+     * {@link #entryRemoved} is called for each of them once it is released.
+     *
      * @param maxSize the maximum size of the cache before returning. May be -1
      *     to evict even 0-sized elements.
      */
-    public void trimToSize(int maxSize) {
-        while (true) {
-            K key;
-            V value;
-            synchronized (this) {
-                if (size < 0 || (map.isEmpty() && size != 0)) {
-                    throw new IllegalStateException(getClass().getName()
-                            + ".sizeOf() is reporting inconsistent results!");
+    public void trimToSize(long maxSize) {
+        ArrayList<K> evictedKeys = null;
+        ArrayList<V> evictedValues = null;
+        long evictedSize = 0;
+
+        synchronized (this) {
+            final long start = System.nanoTime();
+            checkConsistent();
+
+            while (size > maxSize && !map.isEmpty()) {
+                K key;
+                Node<K, V> node;
+                if (policy != null) {
+                    key = policy.selectVictim();
+                    node = map.remove(key);
+                    if (node == null) {
+                        throw new IllegalStateException(policy.getClass().getName()
+                                + " selected a victim that is not in the cache");
+                    }
+                } else {
+                    node = eldest();
+                    key = node.key;
+                    map.remove(key);
                 }
+                unlink(node);
+                size -= node.weight;
+                evictedSize += node.weight;
+                node.removed = true;
 
-                if (size <= maxSize || map.isEmpty()) {
-                    break;
+                if (evictedKeys == null) {
+                    evictedKeys = new ArrayList<K>();
+                    evictedValues = new ArrayList<V>();
                 }
+                evictedKeys.add(key);
+                evictedValues.add(node.value);
+            }
+
+            checkConsistent();
+            if (evictedKeys != null) {
+                evictLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        if (evictedKeys != null) {
+            evictionCount.add(evictedKeys.size());
+            evictionSize.add(evictedSize);
+            dispatchRemovals(true, evictedKeys, evictedValues, null);
+        }
+    }
+
+    private void checkConsistent() {
+        if (size < 0 || (map.isEmpty() && size != 0)) {
+            throw new IllegalStateException(getClass().getName()
+                    + ".sizeOf() is reporting inconsistent results!");
+        }
+    }
 
-                Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
-                key = toEvict.getKey();
-                value = toEvict.getValue();
-                map.remove(key);
-                size -= safeSizeOf(key, value);
-                evictionCount++;
+    /**
+     * Deliver {@link #entryRemoved} for each of {@code keys}, on the removal
+     * pipeline if there is one, otherwise on the eviction executor for
+     * evictions, otherwise inline.
+     *
+     * @param newValues replacement values, or null if there are none.
+     */
+    private void dispatchRemovals(final boolean evicted, final List<K> keys,
+            final List<V> oldValues, final List<V> newValues) {
+        final Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                final int count = keys.size();
+                for (int i = 0; i < count; i++) {
+                    entryRemoved(evicted, keys.get(i), oldValues.get(i),
+                            newValues != null ? newValues.get(i) : null);
+                }
             }
+        };
+
+        final RemovalPipeline pipeline = removalPipeline;
+        final Executor executor = evictionExecutor;
+        if (pipeline != null) {
+            pipeline.publish(dispatch);
+        } else if (evicted && executor != null) {
+            executor.execute(dispatch);
+        } else {
+            dispatch.run();
+        }
+    }
 
-            entryRemoved(true, key, value, null);
+    /**
+     * Deliver {@link #entryRemoved} for a single removal that is not an
+     * eviction, as {@link #dispatchRemovals} would.
+     */
+    private void dispatchRemoval(final K key, final V oldValue, final V newValue) {
+        final RemovalPipeline pipeline = removalPipeline;
+        if (pipeline == null) {
+            entryRemoved(false, key, oldValue, newValue);
+            return;
         }
+        pipeline.publish(new Runnable() {
+            @Override
+            public void run() {
+                entryRemoved(false, key, oldValue, newValue);
+            }
+        });
     }
 
     /**
@@ -178,19 +704,127 @@ public class LruCache<K, V> {
             throw new NullPointerException("key == null");
         }
 
-        V previous;
+        Node<K, V> previous;
         synchronized (this) {
             previous = map.remove(key);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                unlink(previous);
+                size -= previous.weight;
+                previous.removed = true;
+                if (policy != null) {
+                    policy.recordRemove(key);
+                }
             }
         }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, null);
+            dispatchRemoval(key, previous.value, null);
+        }
+
+        return valueOf(previous);
+    }
+
+    /**
+     * Removes the entries for every key in {@code keys} under a single lock
+     * acquisition, calling {@link #entryRemoved} for each once it is released.
+     *
+     * @return the number of entries removed.
+     */
+    public final int removeAll(Iterable<? extends K> keys) {
+        ArrayList<K> removedKeys = null;
+        ArrayList<V> removedValues = null;
+        synchronized (this) {
+            for (K key : keys) {
+                if (key == null) {
+                    throw new NullPointerException("key == null");
+                }
+                final Node<K, V> previous = map.remove(key);
+                if (previous == null) {
+                    continue;
+                }
+                unlink(previous);
+                size -= previous.weight;
+                previous.removed = true;
+                if (policy != null) {
+                    policy.recordRemove(key);
+                }
+
+                if (removedKeys == null) {
+                    removedKeys = new ArrayList<K>();
+                    removedValues = new ArrayList<V>();
+                }
+                removedKeys.add(key);
+                removedValues.add(previous.value);
+            }
+        }
+
+        if (removedKeys == null) {
+            return 0;
+        }
+        dispatchRemovals(false, removedKeys, removedValues, null);
+        return removedKeys.size();
+    }
+
+    /**
+     * Like {@link #removeAll}, but for keys picked from
+     * {@link #keysInEvictionOrder}: the eviction policy sees the entries go
+     * as if {@link #trimToSize} had evicted them, so admission decisions it
+     * made along the way stick. Any entry the policy offers first that is not
+     * in {@code keys} stays, and is handed back to the policy as if newly
+     * inserted.
+     *
+     * @return the number of entries removed.
+     */
+    public final int removeVictims(Iterable<? extends K> keys) {
+        ArrayList<K> removedKeys = null;
+        ArrayList<V> removedValues = null;
+        synchronized (this) {
+            final HashSet<K> remaining = new HashSet<K>();
+            for (K key : keys) {
+                if (key == null) {
+                    throw new NullPointerException("key == null");
+                }
+                if (map.containsKey(key)) {
+                    remaining.add(key);
+                }
+            }
+
+            ArrayList<K> spared = null;
+            while (!remaining.isEmpty()) {
+                final K key = policy != null
+                        ? policy.selectVictim() : remaining.iterator().next();
+                if (!remaining.remove(key)) {
+                    if (spared == null) {
+                        spared = new ArrayList<K>();
+                    }
+                    spared.add(key);
+                    continue;
+                }
+                final Node<K, V> previous = map.remove(key);
+                unlink(previous);
+                size -= previous.weight;
+                previous.removed = true;
+
+                if (removedKeys == null) {
+                    removedKeys = new ArrayList<K>();
+                    removedValues = new ArrayList<V>();
+                }
+                removedKeys.add(key);
+                removedValues.add(previous.value);
+            }
+            if (spared != null) {
+                for (K key : spared) {
+                    policy.recordInsert(key, map.get(key).weight);
+                }
+            }
+            checkConsistent();
         }
 
-        return previous;
+        if (removedKeys == null) {
+            return 0;
+        }
+        dispatchRemovals(false, removedKeys, removedValues, null);
+        return removedKeys.size();
     }
 
     /**
@@ -200,7 +834,9 @@ public class LruCache<K, V> {
      * implementation does nothing.
      *
      * <p>The method is called without synchronization: other threads may
-     * access the cache while this method is executing.
+     * access the cache while this method is executing. Evictions are reported
+     * on the executor given to {@link #setEvictionExecutor}, if any, and all
+     * removals on the pipeline given to {@link #setRemovalPipeline}, if any.
      *
      * @param evicted true if the entry is being removed to make space, false
      *     if the removal was caused by a {@link #put} or {@link #remove}.
@@ -223,7 +859,8 @@ public class LruCache<K, V> {
      * and discarded. This can occur when multiple threads request the same key
      * at the same time (causing multiple values to be created), or when one
      * thread calls {@link #put} while another is creating a value for the same
-     * key.
+     * key. Enabling create coalescing in the constructor avoids the first
+     * case.
      */
     protected V create(K key) {
         return null;
@@ -242,12 +879,31 @@ public class LruCache<K, V> {
      * user-defined units.  The default implementation returns 1 so that size
      * is the number of entries and max size is the maximum number of entries.
      *
-     * <p>An entry's size must not change while it is in the cache.
+     * <p>An entry's size must not change while it is in the cache. It is
+     * computed once, when the entry is added, and remembered until the entry
+     * is removed.
      */
     protected int sizeOf(K key, V value) {
         return 1;
     }
 
+    /**
+     * Change the maximum size of the cache, evicting entries if it is now
+     * over budget.
+     */
+    public final void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (this) {
+            this.maxSize = maxSize;
+            if (policy != null) {
+                policy.setMaxSize(maxSize);
+            }
+        }
+        trimToSize(maxSize);
+    }
+
     /**
      * Clear the cache, calling {@link #entryRemoved} on each removed entry.
      */
@@ -260,7 +916,7 @@ public class LruCache<K, V> {
      * of entries in the cache. For all other caches, this returns the sum of
      * the sizes of the entries in this cache.
      */
-    public synchronized final int size() {
+    public synchronized final long size() {
         return size;
     }
 
@@ -269,58 +925,381 @@ public class LruCache<K, V> {
      * number of entries in the cache. For all other caches, this returns the
      * maximum sum of the sizes of the entries in this cache.
      */
-    public synchronized final int maxSize() {
+    public synchronized final long maxSize() {
         return maxSize;
     }
 
     /**
      * Returns the number of times {@link #get} returned a value.
      */
-    public synchronized final int hitCount() {
-        return hitCount;
+    public final long hitCount() {
+        return hitCount.sum();
     }
 
     /**
      * Returns the number of times {@link #get} returned null or required a new
      * value to be created.
      */
-    public synchronized final int missCount() {
-        return missCount;
+    public final long missCount() {
+        return missCount.sum();
     }
 
     /**
      * Returns the number of times {@link #create(Object)} returned a value.
+     * With create coalescing enabled, concurrent misses on one key share a
+     * single create.
      */
-    public synchronized final int createCount() {
-        return createCount;
+    public final long createCount() {
+        return createCount.sum();
+    }
+
+    /**
+     * Returns the number of misses that waited for a {@link #create} already in
+     * progress for the same key, rather than starting their own.
+     */
+    public final long coalescedCount() {
+        return coalescedCount.sum();
     }
 
     /**
      * Returns the number of times {@link #put} was called.
      */
-    public synchronized final int putCount() {
-        return putCount;
+    public final long putCount() {
+        return putCount.sum();
     }
 
     /**
      * Returns the number of values that have been evicted.
      */
-    public synchronized final int evictionCount() {
-        return evictionCount;
+    public final long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * Returns the total size of the values that have been evicted.
+     */
+    public final long evictionSize() {
+        return evictionSize.sum();
     }
 
     /**
-     * Returns a copy of the current contents of the cache, ordered from least
-     * recently accessed to most recently accessed.
+     * Returns a snapshot of the statistics of this cache since it was
+     * created. Reading statistics never blocks cache operations, so counters
+     * updated concurrently may be slightly out of step with each other.
      */
-    public synchronized final Map<K, V> snapshot() {
-        return new LinkedHashMap<K, V>(map);
+    public final CacheStats stats() {
+        final long now = System.nanoTime();
+        return new CacheStats(now, now - createdNanos, hitCount.sum(), missCount.sum(),
+                createCount.sum(), coalescedCount.sum(), putCount.sum(), evictionCount.sum(),
+                evictionSize.sum(), getLatency.snapshot(), createLatency.snapshot(),
+                evictLatency.snapshot());
+    }
+
+    /**
+     * Returns a copy of the contents of the cache, ordered from least recently
+     * accessed to most recently accessed. The copy is built in chunks with
+     * {@link #entryIterator}, so it never blocks other threads for long, but
+     * it is only weakly consistent: an entry accessed while the copy is made
+     * appears at its new position.
+     */
+    public final Map<K, V> snapshot() {
+        final LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>();
+        final Iterator<Map.Entry<K, V>> it = entryIterator();
+        while (it.hasNext()) {
+            final Map.Entry<K, V> entry = it.next();
+            // Re-inserting moves a key seen twice to its later position
+            snapshot.remove(entry.getKey());
+            snapshot.put(entry.getKey(), entry.getValue());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns an iterator over the entries of the cache, from least recently
+     * accessed to most recently accessed. Entries are read in chunks of at
+     * most {@value #ITERATOR_CHUNK_SIZE} per lock acquisition, and iterating
+     * does not count as an access.
+     *
+     * <p>The iterator is weakly consistent and never throws
+     * {@link java.util.ConcurrentModificationException}. Entries present for
+     * the whole iteration are returned at least once; an entry accessed or
+     * replaced after the iterator passed it is returned again at its new
+     * position. Entries removed during iteration may or may not be returned.
+     * The iterator does not support {@link Iterator#remove}.
+     *
+     * <p>Until it reaches the end, the iterator keeps a small marker in the
+     * cache, which is dropped lazily once the iterator is garbage collected.
+     */
+    public final Iterator<Map.Entry<K, V>> entryIterator() {
+        return new EntryIterator();
+    }
+
+    /**
+     * Returns up to {@code max} keys, from most recently accessed to least
+     * recently accessed, without counting an access. Holds the lock for at
+     * most {@code max} entries, so keep it small; use {@link #entryIterator}
+     * to walk the whole cache.
+     */
+    public synchronized final List<K> keysInAccessOrder(int max) {
+        final ArrayList<K> keys = new ArrayList<K>(Math.min(max, map.size()));
+        for (Node<K, V> node = head.prev; node != head && keys.size() < max;
+                node = node.prev) {
+            if (!node.isCursor()) {
+                keys.add(node.key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns up to {@code max} keys in the order {@link #trimToSize} would
+     * evict them, without evicting anything or counting an access. Like
+     * {@link #keysInAccessOrder}, holds the lock throughout.
+     */
+    public synchronized final List<K> keysInEvictionOrder(int max) {
+        if (policy != null) {
+            return policy.peekVictims(max);
+        }
+        final ArrayList<K> keys = new ArrayList<K>(Math.min(max, map.size()));
+        for (Node<K, V> node = head.next; node != head && keys.size() < max;
+                node = node.next) {
+            if (!node.isCursor()) {
+                keys.add(node.key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the node for {@code key}, moving it to the most recently used
+     * end of the list.
+     */
+    private Node<K, V> access(K key) {
+        final Node<K, V> node = map.get(key);
+        if (node != null && head.prev != node) {
+            unlink(node);
+            linkLast(node);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the least recently used entry, discarding cursors abandoned by
+     * their iterators on the way.
+     */
+    private Node<K, V> eldest() {
+        Node<K, V> node = head.next;
+        while (node.isCursor()) {
+            final Node<K, V> next = node.next;
+            if (((Cursor<K, V>) node).isAbandoned()) {
+                unlink(node);
+            }
+            node = next;
+        }
+        return node;
+    }
+
+    private void linkLast(Node<K, V> node) {
+        linkBefore(node, head);
+    }
+
+    private static <K, V> void linkBefore(Node<K, V> node, Node<K, V> successor) {
+        node.prev = successor.prev;
+        node.next = successor;
+        successor.prev.next = node;
+        successor.prev = node;
+    }
+
+    private static <K, V> void unlink(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static <K, V> V valueOf(Node<K, V> node) {
+        return node != null ? node.value : null;
+    }
+
+    private static <T> T getUninterruptibly(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new IllegalStateException(cause);
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     @Override public synchronized final String toString() {
-        int accesses = hitCount + missCount;
-        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        final long hits = hitCount.sum();
+        final long accesses = hits + missCount.sum();
+        final long hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
         return String.format("LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
-                maxSize, hitCount, missCount, hitPercent);
+                maxSize, hits, accesses - hits, hitPercent);
+    }
+
+    /** Most entries an iterator copies per lock acquisition. */
+    private static final int ITERATOR_CHUNK_SIZE = 64;
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * Cached value along with its size, so that {@link #sizeOf} is called
+     * only once per entry, and its links in the access-order list. Mutable
+     * fields are guarded by the cache lock.
+     */
+    private static class Node<K, V> {
+        /** Key of the entry, or null for the list sentinel and cursors. */
+        final K key;
+        final V value;
+        /** Size of the entry, or 0 while it waits to be weighed. */
+        int weight;
+        /** Set once the entry leaves the cache, so a pending weigh is dropped. */
+        boolean removed;
+
+        Node<K, V> prev = this;
+        Node<K, V> next = this;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+
+        boolean isCursor() {
+            return this instanceof Cursor;
+        }
+    }
+
+    /**
+     * Position of an {@link EntryIterator} in the access-order list, skipped
+     * by everything else walking the list. Only weakly references its
+     * iterator, so cursors of abandoned iterators can be discarded.
+     */
+    private static final class Cursor<K, V> extends Node<K, V> {
+        private final WeakReference<Object> owner;
+
+        Cursor(Object owner) {
+            super(null, null, 0);
+            this.owner = new WeakReference<Object>(owner);
+        }
+
+        boolean isAbandoned() {
+            return owner.get() == null;
+        }
+    }
+
+    /**
+     * Iterator that copies entries a chunk at a time, leaving a cursor after
+     * the last entry copied so that it can resume once the lock has been
+     * released in between.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private final Cursor<K, V> cursor = new Cursor<K, V>(this);
+        private final ArrayList<Map.Entry<K, V>> chunk =
+                new ArrayList<Map.Entry<K, V>>(ITERATOR_CHUNK_SIZE);
+        private int index;
+        private boolean done;
+
+        public EntryIterator() {
+            synchronized (LruCache.this) {
+                linkBefore(cursor, head.next);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (index == chunk.size() && !done) {
+                fill();
+            }
+            return index < chunk.size();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.get(index++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fill() {
+            chunk.clear();
+            index = 0;
+            synchronized (LruCache.this) {
+                Node<K, V> node = cursor.next;
+                int steps = 0;
+                while (node != head && steps++ < ITERATOR_CHUNK_SIZE) {
+                    final Node<K, V> next = node.next;
+                    if (!node.isCursor()) {
+                        chunk.add(new AbstractMap.SimpleImmutableEntry<K, V>(
+                                node.key, node.value));
+                    } else if (((Cursor<K, V>) node).isAbandoned()) {
+                        unlink(node);
+                    }
+                    node = next;
+                }
+
+                unlink(cursor);
+                if (node == head) {
+                    done = true;
+                } else {
+                    linkBefore(cursor, node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pending {@link #create} for a single key, shared by every caller that
+     * misses on that key while it runs.
+     */
+    private class CreateTask extends FutureTask<V> {
+        private final K key;
+
+        public CreateTask(final K key, final boolean counted) {
+            super(new Callable<V>() {
+                @Override
+                public V call() {
+                    return createAndCache(key, counted);
+                }
+            });
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {
+            synchronized (LruCache.this) {
+                if (inFlight != null && inFlight.get(key) == this) {
+                    inFlight.remove(key);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,614 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Size-bounded disk cache of byte blocks keyed by {@code long}, read through a
+ * {@link MappedByteBuffer} so that hits are served without copying.
+ *
+ * <p>Blocks are appended to a single data file, each preceded by a record
+ * header carrying its key, length and CRC32. An index of live records is
+ * periodically written beside it, atomically through a temporary file. On
+ * open, records appended after the last index write are recovered by scanning
+ * the data file, which is truncated at the first torn or corrupt record; a
+ * missing or stale index is rebuilt the same way. When the data file grows
+ * beyond its maximum size, the most recently used records are compacted into
+ * a fresh file and the rest are dropped.
+ *
+ * <p>Reads go through a window mapped from the start of the data file, which
+ * at least doubles whenever a read falls past its end. The file is extended
+ * with zeros to cover each new window, and appends fill that tail in place,
+ * so a run of appends costs a logarithmic number of remaps rather than one
+ * per record. The zero tail ends the scan on open like any torn record.
+ *
+ * <p>Removed entries may reappear after a crash that happens before the next
+ * index write, so callers should only store data that stays valid for its
+ * key.
+ */
+public class MappedDiskCache implements Closeable {
+    private static final String DATA_FILE = "data";
+    private static final String INDEX_FILE = "index";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int DATA_MAGIC = 0x54484d44;
+    private static final int INDEX_MAGIC = 0x54484d49;
+    private static final int RECORD_MAGIC = 0x54484d52;
+    private static final int VERSION = 1;
+
+    /** Data file header: magic, version, generation. */
+    private static final int DATA_HEADER_SIZE = 16;
+    /** Record header: magic, key, payload length, payload CRC32. */
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    /** Number of appends between index writes. */
+    private static final int INDEX_INTERVAL = 32;
+
+    /** Smallest window mapped over the data file. */
+    private static final long MIN_WINDOW_SIZE = 1024 * 1024;
+
+    private final File directory;
+    private final long maxSize;
+
+    /** Live records in access order, least recently used first. */
+    private final LinkedHashMap<Long, Entry> entries =
+            new LinkedHashMap<Long, Entry>(0, 0.75f, true);
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+
+    /** Bumped on every compaction, so a stale index is never trusted. */
+    private long generation;
+    private long dataLength;
+    private long liveSize;
+    private int pendingAppends;
+
+    private int hitCount;
+    private int missCount;
+    private int compactionCount;
+    private int recoveredCount;
+
+    private static class Entry {
+        /** Offset of the payload, just after its record header. */
+        final long offset;
+        final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private MappedDiskCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Open the cache stored in {@code directory}, creating it when missing and
+     * recovering any records written since the last index.
+     *
+     * @param maxSize maximum size of the data file in bytes, including record
+     *     headers.
+     */
+    public static MappedDiskCache open(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        final MappedDiskCache cache = new MappedDiskCache(directory, maxSize);
+        cache.openData();
+        cache.recover();
+        return cache;
+    }
+
+    /**
+     * Returns true if a block is stored for {@code key}, without counting a
+     * hit or miss.
+     */
+    public synchronized boolean contains(long key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Returns a read-only view of the block stored for {@code key}, or null.
+     * The view stays valid even if the cache is later compacted or closed.
+     */
+    public synchronized ByteBuffer get(long key) throws IOException {
+        checkOpen();
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+
+        if (mapped == null || entry.offset + entry.length > mapped.capacity()) {
+            mapped = mapWindow(entry.offset + entry.length);
+        }
+        final ByteBuffer view = mapped.duplicate();
+        view.position((int) entry.offset);
+        view.limit((int) entry.offset + entry.length);
+        return view.slice();
+    }
+
+    /**
+     * Store the remaining bytes of {@code data} for {@code key}, replacing any
+     * existing block, and compact if the data file grows past its maximum
+     * size. Blocks larger than a quarter of the maximum size are ignored.
+     */
+    public synchronized void put(long key, ByteBuffer data) throws IOException {
+        checkOpen();
+        final int length = data.remaining();
+        if (RECORD_HEADER_SIZE + length > maxSize / 4) {
+            return;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(RECORD_MAGIC);
+        header.putLong(key);
+        header.putInt(length);
+        header.putInt(crc(data));
+        header.flip();
+
+        final ByteBuffer payload = data.duplicate();
+        final long offset = dataLength;
+        channel.position(offset);
+        while (header.hasRemaining() || payload.hasRemaining()) {
+            channel.write(new ByteBuffer[] { header, payload });
+        }
+        dataLength = offset + RECORD_HEADER_SIZE + length;
+
+        final Entry previous = entries.put(key, new Entry(offset + RECORD_HEADER_SIZE, length));
+        if (previous != null) {
+            liveSize -= RECORD_HEADER_SIZE + previous.length;
+        }
+        liveSize += RECORD_HEADER_SIZE + length;
+
+        if (dataLength > maxSize) {
+            compact();
+        } else if (++pendingAppends >= INDEX_INTERVAL) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Forget the block stored for {@code key}. Its space is reclaimed by the
+     * next compaction.
+     */
+    public synchronized boolean remove(long key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            liveSize -= RECORD_HEADER_SIZE + entry.length;
+            pendingAppends++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Persist the index, so that the next {@link #open} does not need to scan
+     * for recent records.
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        if (pendingAppends > 0) {
+            writeIndex();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            mapped = null;
+            file.close();
+            file = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Returns the number of bytes used by live records, including their
+     * headers.
+     */
+    public synchronized long size() {
+        return liveSize;
+    }
+
+    /**
+     * Returns the maximum size of the data file in bytes.
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of blocks stored.
+     */
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a block.
+     */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null.
+     */
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of times the data file was compacted.
+     */
+    public synchronized int compactionCount() {
+        return compactionCount;
+    }
+
+    /**
+     * Returns the number of records recovered by scanning the data file when
+     * the cache was opened, rather than read from the index.
+     */
+    public synchronized int recoveredCount() {
+        return recoveredCount;
+    }
+
+    @Override public synchronized String toString() {
+        return String.format("MappedDiskCache[size=%d,maxSize=%d,count=%d,hits=%d,misses=%d]",
+                liveSize, maxSize, entries.size(), hitCount, missCount);
+    }
+
+    private void checkOpen() throws IOException {
+        if (channel == null) {
+            throw new IOException("MappedDiskCache is closed");
+        }
+    }
+
+    private void openData() throws IOException {
+        final File dataFile = new File(directory, DATA_FILE);
+        file = new RandomAccessFile(dataFile, "rw");
+        channel = file.getChannel();
+
+        final ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_SIZE);
+        if (file.length() >= DATA_HEADER_SIZE) {
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() == DATA_MAGIC && header.getInt() == VERSION) {
+                generation = header.getLong();
+                return;
+            }
+        }
+
+        // Missing or unrecognized, so start over with an empty file
+        channel.truncate(0);
+        writeDataHeader(channel, generation);
+    }
+
+    /**
+     * Map a window over the start of the data file covering at least
+     * {@code needed} bytes, at least double the current window, extending
+     * the file with zeros where the window reaches past its end.
+     */
+    private MappedByteBuffer mapWindow(long needed) throws IOException {
+        final long current = mapped == null ? 0 : mapped.capacity();
+        // Appends may overshoot the maximum size by one record before compaction
+        final long limit = Math.max(needed, maxSize + maxSize / 4 + DATA_HEADER_SIZE);
+        final long size = Math.min(Math.max(needed, Math.max(current * 2, MIN_WINDOW_SIZE)),
+                limit);
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    private static void writeDataHeader(FileChannel channel, long generation)
+            throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_SIZE);
+        header.putInt(DATA_MAGIC);
+        header.putInt(VERSION);
+        header.putLong(generation);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, DATA_HEADER_SIZE - header.remaining());
+        }
+    }
+
+    /**
+     * Load the index when it matches the data file, then scan any records
+     * that follow the indexed region.
+     */
+    private void recover() throws IOException {
+        long scanFrom = DATA_HEADER_SIZE;
+        if (readIndex()) {
+            scanFrom = dataLength;
+        } else {
+            entries.clear();
+            liveSize = 0;
+        }
+
+        final long fileLength = channel.size();
+        final MappedByteBuffer buffer = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, fileLength);
+        final byte[] chunk = new byte[8192];
+        long position = scanFrom;
+        while (position + RECORD_HEADER_SIZE <= fileLength) {
+            buffer.position((int) position);
+            if (buffer.getInt() != RECORD_MAGIC) {
+                break;
+            }
+            final long key = buffer.getLong();
+            final int length = buffer.getInt();
+            final int expectedCrc = buffer.getInt();
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > fileLength) {
+                break;
+            }
+
+            final CRC32 crc = new CRC32();
+            int remaining = length;
+            while (remaining > 0) {
+                final int count = Math.min(remaining, chunk.length);
+                buffer.get(chunk, 0, count);
+                crc.update(chunk, 0, count);
+                remaining -= count;
+            }
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+
+            final Entry previous = entries.put(
+                    key, new Entry(position + RECORD_HEADER_SIZE, length));
+            if (previous != null) {
+                liveSize -= RECORD_HEADER_SIZE + previous.length;
+            }
+            liveSize += RECORD_HEADER_SIZE + length;
+            position += RECORD_HEADER_SIZE + length;
+            recoveredCount++;
+        }
+
+        // Anything past the last good record is a torn write or the zero
+        // tail of the last mapped window
+        dataLength = position;
+        if (fileLength > dataLength) {
+            channel.truncate(dataLength);
+        }
+        if (recoveredCount > 0 || fileLength > dataLength) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Read the index, returning false if it is missing, corrupt, or does not
+     * describe the current data file.
+     */
+    private boolean readIndex() {
+        final File indexFile = new File(directory, INDEX_FILE);
+        DataInputStream in = null;
+        try {
+            final CRC32 crc = new CRC32();
+            in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)), crc));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION
+                    || in.readLong() != generation) {
+                return false;
+            }
+            final long indexedLength = in.readLong();
+            if (indexedLength < DATA_HEADER_SIZE || indexedLength > channel.size()) {
+                return false;
+            }
+
+            final int count = in.readInt();
+            long size = 0;
+            for (int i = 0; i < count; i++) {
+                final long key = in.readLong();
+                final long offset = in.readLong();
+                final int length = in.readInt();
+                if (offset < DATA_HEADER_SIZE + RECORD_HEADER_SIZE
+                        || length < 0 || offset + length > indexedLength) {
+                    return false;
+                }
+                entries.put(key, new Entry(offset, length));
+                size += RECORD_HEADER_SIZE + length;
+            }
+
+            final int expectedCrc = (int) crc.getValue();
+            if (in.readInt() != expectedCrc) {
+                return false;
+            }
+
+            dataLength = indexedLength;
+            liveSize = size;
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Atomically replace the index with the current set of live records.
+     */
+    private void writeIndex() throws IOException {
+        final File indexFile = new File(directory, INDEX_FILE);
+        final File tempFile = new File(directory, INDEX_FILE + TEMP_SUFFIX);
+
+        final FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            final CRC32 crc = new CRC32();
+            final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(fos), crc));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeLong(dataLength);
+            out.writeInt(entries.size());
+            for (Map.Entry<Long, Entry> mapEntry : entries.entrySet()) {
+                out.writeLong(mapEntry.getKey());
+                out.writeLong(mapEntry.getValue().offset);
+                out.writeInt(mapEntry.getValue().length);
+            }
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+
+            // Index must only point at data that is durable
+            channel.force(false);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Unable to replace " + indexFile);
+        }
+        pendingAppends = 0;
+    }
+
+    /**
+     * Rewrite the most recently used records into a fresh data file, keeping
+     * up to three quarters of the maximum size, and drop the rest.
+     */
+    private void compact() throws IOException {
+        final ArrayList<Map.Entry<Long, Entry>> ordered =
+                new ArrayList<Map.Entry<Long, Entry>>(entries.entrySet());
+        final long budget = maxSize * 3 / 4 - DATA_HEADER_SIZE;
+
+        // Walk from most recently used to find where the kept region begins
+        long kept = 0;
+        int first = ordered.size();
+        while (first > 0) {
+            final long recordSize = RECORD_HEADER_SIZE + ordered.get(first - 1).getValue().length;
+            if (kept + recordSize > budget) {
+                break;
+            }
+            kept += recordSize;
+            first--;
+        }
+
+        final long newGeneration = generation + 1;
+        final File dataFile = new File(directory, DATA_FILE);
+        final File tempFile = new File(directory, DATA_FILE + TEMP_SUFFIX);
+        final LinkedHashMap<Long, Entry> compacted = new LinkedHashMap<Long, Entry>(
+                0, 0.75f, true);
+
+        final RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+        long position = DATA_HEADER_SIZE;
+        try {
+            final FileChannel tempChannel = temp.getChannel();
+            tempChannel.truncate(0);
+            writeDataHeader(tempChannel, newGeneration);
+
+            // Copy in access order, so the new file preserves recency
+            for (int i = first; i < ordered.size(); i++) {
+                final Map.Entry<Long, Entry> mapEntry = ordered.get(i);
+                final Entry entry = mapEntry.getValue();
+                final long recordSize = RECORD_HEADER_SIZE + entry.length;
+                long copied = 0;
+                while (copied < recordSize) {
+                    copied += channel.transferTo(entry.offset - RECORD_HEADER_SIZE + copied,
+                            recordSize - copied, tempChannel.position(position + copied));
+                }
+                compacted.put(mapEntry.getKey(),
+                        new Entry(position + RECORD_HEADER_SIZE, entry.length));
+                position += recordSize;
+            }
+            tempChannel.force(true);
+        } finally {
+            temp.close();
+        }
+
+        // Once the rename lands, the old index no longer matches the data
+        // file's generation, so a crash here only costs a rescan
+        mapped = null;
+        file.close();
+        if (!tempFile.renameTo(dataFile)) {
+            throw new IOException("Unable to replace " + dataFile);
+        }
+        file = new RandomAccessFile(dataFile, "rw");
+        channel = file.getChannel();
+
+        generation = newGeneration;
+        dataLength = position;
+        liveSize = kept;
+        entries.clear();
+        entries.putAll(compacted);
+        compactionCount++;
+        writeIndex();
+    }
+
+    private static int crc(ByteBuffer data) {
+        final CRC32 crc = new CRC32();
+        if (data.hasArray()) {
+            crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            final ByteBuffer source = data.duplicate();
+            final byte[] chunk = new byte[Math.min(source.remaining(), 8192)];
+            while (source.hasRemaining()) {
+                final int count = Math.min(source.remaining(), chunk.length);
+                source.get(chunk, 0, count);
+                crc.update(chunk, 0, count);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+}
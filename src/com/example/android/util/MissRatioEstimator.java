@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link EvictionPolicy} decorator that estimates the hit ratio a cache would
+ * see at budgets other than its current one, tracing a coarse miss-ratio
+ * curve that can drive resizing decisions.
+ *
+ * <p>For each budget estimated, the decorator replays the access stream into
+ * a simulated LRU cache holding only keys and sizes, never values, so keys
+ * evicted from the real cache stay remembered as ghost entries by the larger
+ * simulations. Each simulation costs one map entry per key it holds. Counts
+ * decay by half periodically so estimates follow the current workload.
+ */
+public class MissRatioEstimator<K> implements EvictionPolicy<K> {
+    /** Accesses between halving all counts. */
+    private static final int DECAY_INTERVAL = 4096;
+
+    private final EvictionPolicy<K> delegate;
+    private final ArrayList<Simulation<K>> simulations = new ArrayList<Simulation<K>>();
+
+    /** Sizes of the entries currently held by the real cache. */
+    private final HashMap<K, Integer> residentSizes = new HashMap<K, Integer>();
+
+    private int requests;
+    private int ghostHits;
+
+    /**
+     * @param delegate policy making the actual eviction decisions.
+     * @param maxSize current maximum size of the cache.
+     * @param scales budgets to estimate, as multiples of {@code maxSize}.
+     */
+    public MissRatioEstimator(EvictionPolicy<K> delegate, long maxSize, double... scales) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate == null");
+        }
+        this.delegate = delegate;
+        for (double scale : scales) {
+            simulations.add(new Simulation<K>(scale, maxSize));
+        }
+    }
+
+    @Override
+    public void recordAccess(K key, boolean hit) {
+        delegate.recordAccess(key, hit);
+
+        boolean anyHit = false;
+        Integer size = residentSizes.get(key);
+        for (Simulation<K> simulation : simulations) {
+            final Integer simulated = simulation.entries.get(key);
+            if (simulated != null) {
+                simulation.hits++;
+                anyHit = true;
+                size = simulated;
+            }
+        }
+        if (!hit && anyHit) {
+            ghostHits++;
+        }
+
+        // Simulations that missed admit the key now if its size is known,
+        // otherwise when the real cache inserts it
+        if (size != null) {
+            for (Simulation<K> simulation : simulations) {
+                if (!simulation.entries.containsKey(key)) {
+                    simulation.put(key, size);
+                }
+            }
+        }
+
+        if (++requests == DECAY_INTERVAL) {
+            decay();
+        }
+    }
+
+    @Override
+    public void recordInsert(K key, int size) {
+        delegate.recordInsert(key, size);
+        residentSizes.put(key, size);
+        for (Simulation<K> simulation : simulations) {
+            simulation.put(key, size);
+        }
+    }
+
+    @Override
+    public void recordResize(K key, int size) {
+        delegate.recordResize(key, size);
+        residentSizes.put(key, size);
+        for (Simulation<K> simulation : simulations) {
+            if (simulation.entries.containsKey(key)) {
+                simulation.put(key, size);
+            }
+        }
+    }
+
+    @Override
+    public void recordRemove(K key) {
+        // Explicit removals are not evictions, so later misses on the key
+        // would not be hits at any budget
+        delegate.recordRemove(key);
+        residentSizes.remove(key);
+        for (Simulation<K> simulation : simulations) {
+            simulation.remove(key);
+        }
+    }
+
+    @Override
+    public K selectVictim() {
+        // Victim stays remembered by the simulations that still hold it
+        final K victim = delegate.selectVictim();
+        residentSizes.remove(victim);
+        return victim;
+    }
+
+    @Override
+    public List<K> peekVictims(int max) {
+        return delegate.peekVictims(max);
+    }
+
+    @Override
+    public void setMaxSize(long maxSize) {
+        delegate.setMaxSize(maxSize);
+        for (Simulation<K> simulation : simulations) {
+            simulation.setBaseSize(maxSize);
+        }
+    }
+
+    /**
+     * Returns the estimated hit ratio, from 0 to 1, at the budget
+     * {@code scales[index] * maxSize}.
+     */
+    public double estimatedHitRatio(int index) {
+        return requests != 0 ? (double) simulations.get(index).hits / requests : 0;
+    }
+
+    /**
+     * Returns the number of accesses counted towards the current estimates.
+     */
+    public int requestCount() {
+        return requests;
+    }
+
+    /**
+     * Returns the number of misses on keys evicted recently enough that a
+     * larger cache would have held them.
+     */
+    public int ghostHitCount() {
+        return ghostHits;
+    }
+
+    private void decay() {
+        requests /= 2;
+        ghostHits /= 2;
+        for (Simulation<K> simulation : simulations) {
+            simulation.hits /= 2;
+        }
+    }
+
+    /**
+     * LRU cache of key sizes standing in for the real cache at one budget.
+     */
+    private static final class Simulation<K> {
+        /** Simulated entries, least recently accessed first. */
+        final LinkedHashMap<K, Integer> entries = new LinkedHashMap<K, Integer>(0, 0.75f, true);
+        final double scale;
+        long maxSize;
+        long size;
+        int hits;
+
+        Simulation(double scale, long baseSize) {
+            this.scale = scale;
+            this.maxSize = (long) (scale * baseSize);
+        }
+
+        void put(K key, int entrySize) {
+            final Integer previous = entries.put(key, entrySize);
+            size += entrySize - (previous != null ? previous : 0);
+            trim();
+        }
+
+        void remove(K key) {
+            final Integer previous = entries.remove(key);
+            if (previous != null) {
+                size -= previous;
+            }
+        }
+
+        void setBaseSize(long baseSize) {
+            maxSize = (long) (scale * baseSize);
+            trim();
+        }
+
+        private void trim() {
+            final Iterator<Map.Entry<K, Integer>> it = entries.entrySet().iterator();
+            while (size > maxSize && it.hasNext()) {
+                size -= it.next().getValue();
+                it.remove();
+            }
+        }
+    }
+}
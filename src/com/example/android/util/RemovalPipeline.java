@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of removal notifications from one or more caches, drained in
+ * batches by a dedicated listener thread, so that work done when entries
+ * leave a cache stays off the threads that removed them. See
+ * {@link LruCache#setRemovalPipeline}.
+ *
+ * <p>Any number of threads may publish. When the queue is full, publishers
+ * block until the listener catches up, so a burst of removals slows down its
+ * producers instead of growing the queue without bound. Publishers must not
+ * hold locks the notifications need. Notifications published from the
+ * listener thread itself, such as by a callback that modifies a cache, run
+ * inline rather than waiting on the listener.
+ */
+public class RemovalPipeline {
+    /** How long a blocked publisher waits between checks that the listener is alive. */
+    private static final long PUBLISH_WAIT_MILLIS = 100;
+
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final int maxBatch;
+    private final Thread listener;
+
+    /** Set once the listener has stopped, after which notifications run inline. */
+    private volatile boolean stopped;
+
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    /** Guarded by this. */
+    private long deliveredCount;
+    private long batchCount;
+
+    /**
+     * @param name name of the listener thread.
+     * @param capacity notifications that may be queued before publishers
+     *     block.
+     * @param maxBatch notifications the listener takes from the queue at
+     *     once.
+     */
+    public RemovalPipeline(String name, int capacity, int maxBatch) {
+        if (capacity <= 0 || maxBatch <= 0) {
+            throw new IllegalArgumentException("capacity <= 0 || maxBatch <= 0");
+        }
+        this.queue = new ArrayBlockingQueue<Runnable>(capacity);
+        this.maxBatch = maxBatch;
+        this.listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverBatches();
+            }
+        }, name);
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Queue {@code notification} to run on the listener thread, blocking
+     * while the queue is full.
+     */
+    public void publish(Runnable notification) {
+        if (stopped || Thread.currentThread() == listener) {
+            notification.run();
+            return;
+        }
+
+        publishedCount.incrementAndGet();
+        if (queue.offer(notification)) {
+            return;
+        }
+
+        blockedCount.incrementAndGet();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (queue.offer(notification, PUBLISH_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    // Dropping a removal would leak whatever it releases
+                    interrupted = true;
+                }
+                if (stopped) {
+                    notification.run();
+                    return;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wait until every notification published before this call has run, such
+     * as before checking memory that removals release. Returns immediately
+     * when called from the listener thread.
+     */
+    public void awaitDelivered() {
+        if (Thread.currentThread() == listener) {
+            return;
+        }
+        final long target = publishedCount.get();
+        boolean interrupted = false;
+        synchronized (this) {
+            while (deliveredCount < target && !stopped) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of notifications waiting for the listener.
+     */
+    public int pendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of notifications queued for the listener.
+     */
+    public long publishedCount() {
+        return publishedCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #publish} blocked on a full queue.
+     */
+    public long blockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * Returns the number of notifications the listener has run.
+     */
+    public synchronized long deliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * Returns the number of batches the listener has taken from the queue.
+     */
+    public synchronized long batchCount() {
+        return batchCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("RemovalPipeline[published=%d,delivered=%d,batches=%d,blocked=%d]",
+                publishedCount.get(), deliveredCount, batchCount, blockedCount.get());
+    }
+
+    private void deliverBatches() {
+        final ArrayList<Runnable> batch = new ArrayList<Runnable>(maxBatch);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - 1);
+                final int count = batch.size();
+                for (int i = 0; i < count; i++) {
+                    batch.get(i).run();
+                }
+                batch.clear();
+
+                synchronized (this) {
+                    deliveredCount += count;
+                    batchCount++;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Interrupted by its owner, so deliver what is left and stop
+            stopped = true;
+            Runnable notification;
+            while ((notification = queue.poll()) != null) {
+                notification.run();
+            }
+        } finally {
+            // Including when a notification threw, which the thread's
+            // uncaught exception handler reports
+            stopped = true;
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Store of byte records keyed by {@code long} id, packed into large slabs of
+ * memory allocated with {@link ByteBuffer#allocateDirect}, so that many
+ * records cost a few large allocations outside of the objects the garbage
+ * collector has to trace.
+ *
+ * <p>Each slab is divided into pages, and a record occupies a run of
+ * contiguous pages found first-fit. When no run is large enough and no more
+ * slabs may be allocated, least recently used records are evicted until one
+ * is. Slabs left empty are released.
+ *
+ * <p>Methods are synchronized on the store. Buffers returned by {@link #get}
+ * and {@link #reserve} are views of a slab, only valid until their record is
+ * replaced, removed or evicted, so callers sharing a store must hold its lock
+ * while using them.
+ */
+public class SlabStore {
+    private final int slabSize;
+    private final int pageSize;
+    private final int pagesPerSlab;
+    private final int maxSlabs;
+
+    /** Allocated slabs, with null holes where empty slabs were released. */
+    private final ArrayList<Slab> slabs = new ArrayList<Slab>();
+
+    /** Records, least recently used first. */
+    private final LinkedHashMap<Long, Slot> slots = new LinkedHashMap<Long, Slot>(0, 0.75f, true);
+
+    private long usedBytes;
+    private long reservedPages;
+    private int slabCount;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+    private int rejectCount;
+
+    /**
+     * @param slabSize bytes allocated at once, and the largest record size.
+     * @param pageSize allocation granularity, dividing {@code slabSize}.
+     * @param maxSlabs slabs that may be allocated before evicting.
+     */
+    public SlabStore(int slabSize, int pageSize, int maxSlabs) {
+        if (slabSize <= 0 || pageSize <= 0 || slabSize % pageSize != 0) {
+            throw new IllegalArgumentException("slabSize must be a multiple of pageSize");
+        }
+        if (maxSlabs <= 0) {
+            throw new IllegalArgumentException("maxSlabs <= 0");
+        }
+        this.slabSize = slabSize;
+        this.pageSize = pageSize;
+        this.pagesPerSlab = slabSize / pageSize;
+        this.maxSlabs = maxSlabs;
+    }
+
+    /**
+     * Returns a read-only view of the record for {@code id}, positioned at
+     * its first byte and limited to its length, or null if there is none.
+     */
+    public synchronized ByteBuffer get(long id) {
+        final Slot slot = slots.get(id);
+        if (slot == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return view(slot).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns whether a record for {@code id} is stored, without counting a
+     * use.
+     */
+    public synchronized boolean contains(long id) {
+        return slots.containsKey(id);
+    }
+
+    /**
+     * Store a copy of the remaining bytes of {@code src}, replacing any
+     * record for {@code id}. The position of {@code src} is not changed.
+     *
+     * @return false if the record is larger than a slab.
+     */
+    public synchronized boolean put(long id, ByteBuffer src) {
+        final ByteBuffer dst = reserve(id, src.remaining());
+        if (dst == null) {
+            return false;
+        }
+        dst.put(src.duplicate());
+        return true;
+    }
+
+    /**
+     * Allocate a record of {@code length} bytes for {@code id}, replacing any
+     * existing one, and return a writable view of it for the caller to fill.
+     *
+     * @return null if the record is larger than a slab.
+     */
+    public synchronized ByteBuffer reserve(long id, int length) {
+        remove(id);
+        if (length < 0 || length > slabSize) {
+            rejectCount++;
+            return null;
+        }
+
+        final int pages = Math.max(1, (length + pageSize - 1) / pageSize);
+        Slot slot = allocate(id, pages, length);
+        while (slot == null) {
+            evictEldest();
+            slot = allocate(id, pages, length);
+        }
+        slots.put(id, slot);
+        usedBytes += length;
+        reservedPages += pages;
+        putCount++;
+        return view(slot);
+    }
+
+    /**
+     * Remove the record for {@code id}, returning whether there was one.
+     */
+    public synchronized boolean remove(long id) {
+        final Slot slot = slots.remove(id);
+        if (slot == null) {
+            return false;
+        }
+        free(slot);
+        return true;
+    }
+
+    /**
+     * Evict least recently used records until no more than {@code maxBytes}
+     * of record data remain.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        while (usedBytes > maxBytes && !slots.isEmpty()) {
+            evictEldest();
+        }
+    }
+
+    /**
+     * Remove every record and release every slab.
+     */
+    public void clear() {
+        trimToSize(-1);
+    }
+
+    /**
+     * Returns the number of records stored.
+     */
+    public synchronized int count() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the bytes of record data stored.
+     */
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the bytes of the pages occupied by records, at least
+     * {@link #usedBytes} since records are rounded up to whole pages.
+     */
+    public synchronized long reservedBytes() {
+        return reservedPages * pageSize;
+    }
+
+    /**
+     * Returns the bytes of all currently allocated slabs.
+     */
+    public synchronized long capacityBytes() {
+        return (long) slabCount * slabSize;
+    }
+
+    /**
+     * Returns the largest record that fits in an allocated slab without
+     * evicting, in bytes.
+     */
+    public synchronized int largestFreeRun() {
+        int largest = 0;
+        for (Slab slab : slabs) {
+            if (slab != null) {
+                largest = Math.max(largest, slab.largestFreeRun());
+            }
+        }
+        return largest * pageSize;
+    }
+
+    /**
+     * Returns the fraction of allocated slab space, from 0 to 1, wasted by
+     * rounding records up to whole pages.
+     */
+    public synchronized double internalFragmentation() {
+        final long reserved = reservedBytes();
+        return reserved != 0 ? (double) (reserved - usedBytes) / reserved : 0;
+    }
+
+    /**
+     * Returns the fraction of free slab space, from 0 to 1, that lies outside
+     * the largest contiguous free run, so is unusable for a record as large
+     * as that run.
+     */
+    public synchronized double externalFragmentation() {
+        final long free = capacityBytes() - reservedBytes();
+        return free != 0 ? (double) (free - largestFreeRun()) / free : 0;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a record.
+     */
+    public synchronized final int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null.
+     */
+    public synchronized final int missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of records stored by {@link #put} or
+     * {@link #reserve}.
+     */
+    public synchronized final int putCount() {
+        return putCount;
+    }
+
+    /**
+     * Returns the number of records evicted to make room or to trim.
+     */
+    public synchronized final int evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the number of records too large to store.
+     */
+    public synchronized final int rejectCount() {
+        return rejectCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SlabStore[records=%d,used=%d,capacity=%d,internal=%.2f,"
+                + "external=%.2f,evictions=%d]", slots.size(), usedBytes, capacityBytes(),
+                internalFragmentation(), externalFragmentation(), evictionCount);
+    }
+
+    /**
+     * Allocate the memory backing a new slab. Subclasses may override to back
+     * slabs differently, such as with a memory mapped file.
+     */
+    protected ByteBuffer allocateSlab(int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Returns a slot of {@code pages} contiguous pages, allocating a new slab
+     * if needed and allowed, or null if there is no room without evicting.
+     */
+    private Slot allocate(long id, int pages, int length) {
+        int hole = -1;
+        for (int i = 0; i < slabs.size(); i++) {
+            final Slab slab = slabs.get(i);
+            if (slab == null) {
+                if (hole == -1) {
+                    hole = i;
+                }
+                continue;
+            }
+            final int page = slab.allocate(pages);
+            if (page != -1) {
+                return new Slot(i, page, pages, length);
+            }
+        }
+
+        if (slabCount == maxSlabs) {
+            return null;
+        }
+        final Slab slab = new Slab(allocateSlab(slabSize));
+        final int index;
+        if (hole != -1) {
+            slabs.set(hole, slab);
+            index = hole;
+        } else {
+            slabs.add(slab);
+            index = slabs.size() - 1;
+        }
+        slabCount++;
+        return new Slot(index, slab.allocate(pages), pages, length);
+    }
+
+    private void evictEldest() {
+        final Iterator<Map.Entry<Long, Slot>> it = slots.entrySet().iterator();
+        final Slot slot = it.next().getValue();
+        it.remove();
+        free(slot);
+        evictionCount++;
+    }
+
+    private void free(Slot slot) {
+        final Slab slab = slabs.get(slot.slab);
+        slab.pages.clear(slot.page, slot.page + slot.pages);
+        usedBytes -= slot.length;
+        reservedPages -= slot.pages;
+        if (slab.pages.isEmpty()) {
+            slabs.set(slot.slab, null);
+            slabCount--;
+        }
+    }
+
+    private ByteBuffer view(Slot slot) {
+        final ByteBuffer view = slabs.get(slot.slab).buffer.duplicate();
+        final int offset = slot.page * pageSize;
+        view.limit(offset + slot.length);
+        view.position(offset);
+        return view.slice();
+    }
+
+    private final class Slab {
+        final ByteBuffer buffer;
+        /** Set bits are occupied pages. */
+        final BitSet pages = new BitSet(pagesPerSlab);
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Mark the first run of {@code count} free pages occupied and return
+         * its first page, or -1 if there is none.
+         */
+        int allocate(int count) {
+            int start = pages.nextClearBit(0);
+            while (start + count <= pagesPerSlab) {
+                int end = pages.nextSetBit(start);
+                if (end == -1) {
+                    end = pagesPerSlab;
+                }
+                if (end - start >= count) {
+                    pages.set(start, start + count);
+                    return start;
+                }
+                start = pages.nextClearBit(end);
+            }
+            return -1;
+        }
+
+        int largestFreeRun() {
+            int largest = 0;
+            int start = pages.nextClearBit(0);
+            while (start < pagesPerSlab) {
+                int end = pages.nextSetBit(start);
+                if (end == -1) {
+                    end = pagesPerSlab;
+                }
+                largest = Math.max(largest, end - start);
+                start = pages.nextClearBit(end);
+            }
+            return largest;
+        }
+    }
+
+    private static final class Slot {
+        final int slab;
+        final int page;
+        final int pages;
+        final int length;
+
+        Slot(int slab, int page, int pages, int length) {
+            this.slab = slab;
+            this.page = page;
+            this.pages = pages;
+            this.length = length;
+        }
+    }
+}
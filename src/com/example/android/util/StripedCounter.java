@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 64-bit counter that spreads concurrent updates across several cells, so
+ * threads incrementing it rarely contend on the same memory. Reading the
+ * total with {@link #sum} is not atomic with respect to concurrent updates.
+ */
+public class StripedCounter {
+    /** Longs between used cells, keeping each on its own cache line. */
+    private static final int PAD = 8;
+
+    /** Number of cells, a power of two. */
+    static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        while (stripes < cpus && stripes < 64) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(cellIndex(), delta);
+    }
+
+    /**
+     * Returns the current total of all cells.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    private static int cellIndex() {
+        return stripe() * PAD;
+    }
+
+    /**
+     * Returns the stripe, below {@link #STRIPES}, that the calling thread
+     * updates.
+     */
+    static int stripe() {
+        // Threads keep their id for life, so each one sticks to a stripe
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h & (STRIPES - 1);
+    }
+}
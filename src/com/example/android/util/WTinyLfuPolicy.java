@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Window TinyLFU {@link EvictionPolicy}. New entries land in a small LRU
+ * window; entries overflowing the window become candidates for the main LRU
+ * region, and are only admitted there if a frequency sketch says they are
+ * accessed more often than the main region's eviction victim. This keeps a
+ * one-off scan through many keys from flushing entries that are repeatedly
+ * returned to.
+ */
+public class WTinyLfuPolicy<K> implements EvictionPolicy<K> {
+    /** Percentage of the cache reserved for the admission window. */
+    private static final int WINDOW_PERCENT = 1;
+    /** Pending admission candidates beyond this are admitted outright. */
+    private static final int MAX_CANDIDATES = 64;
+
+    private final FrequencySketch sketch;
+
+    private final LinkedHashMap<K, Integer> window =
+            new LinkedHashMap<K, Integer>(0, 0.75f, true);
+    private final LinkedHashMap<K, Integer> main =
+            new LinkedHashMap<K, Integer>(0, 0.75f, true);
+
+    /** Entries moved from the window that have not yet faced a victim. */
+    private final LinkedHashSet<K> candidates = new LinkedHashSet<K>();
+
+    private long windowMaxSize;
+    private long windowSize;
+
+    /**
+     * @param maxSize maximum size of the owning cache, in the same units as
+     *     its {@code sizeOf()}.
+     * @param expectedEntries rough number of entries the cache holds when
+     *     full, used to size the frequency sketch.
+     */
+    public WTinyLfuPolicy(long maxSize, int expectedEntries) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        setMaxSize(maxSize);
+        sketch = new FrequencySketch(Math.max(expectedEntries, 16));
+    }
+
+    /**
+     * Returns the estimated recent access frequency of {@code key}, from 0 to
+     * 15.
+     */
+    public int frequency(K key) {
+        return sketch.frequency(key.hashCode());
+    }
+
+    @Override
+    public void recordAccess(K key, boolean hit) {
+        // A miss is counted by recordInsert() if the value is then cached,
+        // so that a one-off key does not look like it was used twice
+        if (hit) {
+            sketch.increment(key.hashCode());
+            // Touch to move to the most recently used end of its region
+            if (window.get(key) == null) {
+                main.get(key);
+            }
+        }
+    }
+
+    @Override
+    public void recordInsert(K key, int size) {
+        sketch.increment(key.hashCode());
+        window.put(key, size);
+        windowSize += size;
+        overflowWindow();
+    }
+
+    @Override
+    public void recordResize(K key, int size) {
+        final Integer previous = window.get(key);
+        if (previous != null) {
+            window.put(key, size);
+            windowSize += size - previous;
+            overflowWindow();
+        } else if (main.containsKey(key)) {
+            main.put(key, size);
+        }
+    }
+
+    /**
+     * Overflow the window into the main region, where each new arrival must
+     * eventually win against a victim to stay.
+     */
+    private void overflowWindow() {
+        while (windowSize > windowMaxSize && window.size() > 1) {
+            final Map.Entry<K, Integer> eldest = window.entrySet().iterator().next();
+            final K candidate = eldest.getKey();
+            final int candidateSize = eldest.getValue();
+            window.remove(candidate);
+            windowSize -= candidateSize;
+            main.put(candidate, candidateSize);
+
+            candidates.add(candidate);
+            if (candidates.size() > MAX_CANDIDATES) {
+                final Iterator<K> it = candidates.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void recordRemove(K key) {
+        final Integer size = window.remove(key);
+        if (size != null) {
+            windowSize -= size;
+        } else {
+            main.remove(key);
+            candidates.remove(key);
+        }
+    }
+
+    @Override
+    public K selectVictim() {
+        if (main.isEmpty()) {
+            final Map.Entry<K, Integer> eldest = window.entrySet().iterator().next();
+            windowSize -= eldest.getValue();
+            window.remove(eldest.getKey());
+            return eldest.getKey();
+        }
+
+        final K victim = main.keySet().iterator().next();
+        K candidate = null;
+        if (!candidates.isEmpty()) {
+            final Iterator<K> it = candidates.iterator();
+            candidate = it.next();
+            it.remove();
+        }
+
+        // Admit the candidate only when it is more popular than the victim;
+        // ties favor the incumbent to resist one-hit wonders
+        if (candidate != null && !candidate.equals(victim)
+                && sketch.frequency(candidate.hashCode())
+                        <= sketch.frequency(victim.hashCode())) {
+            main.remove(candidate);
+            return candidate;
+        }
+
+        main.remove(victim);
+        candidates.remove(victim);
+        return victim;
+    }
+
+    @Override
+    public List<K> peekVictims(int max) {
+        // Replay selectVictim() against iterators, skipping what it took
+        final ArrayList<K> victims = new ArrayList<K>(Math.min(max, main.size() + window.size()));
+        final HashSet<K> taken = new HashSet<K>();
+        final Iterator<K> mainIt = main.keySet().iterator();
+        final Iterator<K> candidateIt = candidates.iterator();
+        K victim = nextNotTaken(mainIt, taken);
+        while (victim != null && victims.size() < max) {
+            final K candidate = nextNotTaken(candidateIt, taken);
+            final K next;
+            if (candidate != null && !candidate.equals(victim)
+                    && sketch.frequency(candidate.hashCode())
+                            <= sketch.frequency(victim.hashCode())) {
+                next = candidate;
+            } else {
+                next = victim;
+                victim = null;
+            }
+            victims.add(next);
+            taken.add(next);
+            if (victim == null) {
+                victim = nextNotTaken(mainIt, taken);
+            }
+        }
+
+        final Iterator<K> windowIt = window.keySet().iterator();
+        while (windowIt.hasNext() && victims.size() < max) {
+            victims.add(windowIt.next());
+        }
+        return victims;
+    }
+
+    private static <K> K nextNotTaken(Iterator<K> it, HashSet<K> taken) {
+        while (it.hasNext()) {
+            final K key = it.next();
+            if (!taken.contains(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void setMaxSize(long maxSize) {
+        windowMaxSize = Math.max(1, maxSize * WINDOW_PERCENT / 100);
+        overflowWindow();
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, sixteen per 64-bit word, that
+     * periodically halves every counter so that frequencies reflect recent
+     * history. Each key uses one counter in each of four words.
+     */
+    private static class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        public FrequencySketch(int expectedEntries) {
+            int length = 1;
+            while (length < expectedEntries) {
+                length <<= 1;
+            }
+            table = new long[length];
+            tableMask = length - 1;
+            sampleSize = 10 * length;
+        }
+
+        public int frequency(int hashCode) {
+            final int hash = spread(hashCode);
+            final int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                final int index = indexOf(hash, i);
+                final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        public void increment(int hashCode) {
+            final int hash = spread(hashCode);
+            final int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++additions == sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int index, int counter) {
+            final int offset = counter << 2;
+            final long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & tableMask;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
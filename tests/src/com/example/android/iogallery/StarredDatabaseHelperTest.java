@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.iogallery;
+
+import static com.example.android.iogallery.StarredDatabaseHelper.COLUMN_ID;
+import static com.example.android.iogallery.StarredDatabaseHelper.TABLE_STARRED;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import com.example.android.util.LongBooleanMap;
+import com.example.android.util.LongSparseBooleanArray;
+
+import java.util.TreeSet;
+
+/**
+ * Checks that {@link StarredDatabaseHelper} upgrades databases written by
+ * earlier versions without losing starred photos, and reports how long
+ * upgrading and loading a large version 1 database takes.
+ */
+public class StarredDatabaseHelperTest extends AndroidTestCase {
+    private static final String TAG = "IoGallery";
+
+    /** Rows of the large version 1 database, every tenth of them starred. */
+    private static final int LARGE_ROWS = 100000;
+
+    /** Flag column of version 1, which kept a row for every photo toggled. */
+    private static final String COLUMN_STARRED_V1 = "starred";
+
+    private Context mTestContext;
+    private StarredDatabaseHelper mStarredDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestContext = new RenamingDelegatingContext(getContext(), "test.");
+        mStarredDb = new StarredDatabaseHelper(mTestContext);
+        mTestContext.deleteDatabase(mStarredDb.getDatabaseName());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStarredDb.close();
+        mTestContext.deleteDatabase(mStarredDb.getDatabaseName());
+        super.tearDown();
+    }
+
+    public void testUpgradeFromVersion1() {
+        final SQLiteDatabase v1 = createVersion1();
+        insertVersion1(v1, 1, true);
+        insertVersion1(v1, 2, false);
+        insertVersion1(v1, 3, true);
+        insertVersion1(v1, 50, false);
+        insertVersion1(v1, 1000, true);
+        v1.close();
+
+        // Unstarred rows are dropped, and the journal starts out empty
+        final SQLiteDatabase db = mStarredDb.getWritableDatabase();
+        assertEquals(3, db.getVersion());
+        assertEquals(set(1, 3, 1000), readTable(db));
+        assertEquals(0, StarredDatabaseHelper.queryLatestVersion(db));
+    }
+
+    public void testUpgradeFromVersion2() {
+        final SQLiteDatabase v2 = mTestContext.openOrCreateDatabase(
+                mStarredDb.getDatabaseName(), Context.MODE_PRIVATE, null);
+        v2.execSQL("CREATE TABLE " + TABLE_STARRED + " (" + COLUMN_ID + " INTEGER PRIMARY KEY)");
+        v2.execSQL("INSERT INTO " + TABLE_STARRED + " (" + COLUMN_ID + ") VALUES (7)");
+        v2.execSQL("INSERT INTO " + TABLE_STARRED + " (" + COLUMN_ID + ") VALUES (9)");
+        v2.setVersion(2);
+        v2.close();
+
+        final SQLiteDatabase db = mStarredDb.getWritableDatabase();
+        assertEquals(3, db.getVersion());
+        assertEquals(set(7, 9), readTable(db));
+
+        // Journal is in place for the writer
+        final LongSparseBooleanArray changes = new LongSparseBooleanArray();
+        changes.put(9, false);
+        new StarredWriter(mStarredDb).write(changes, true);
+        assertEquals(set(7), readTable(db));
+        assertEquals(1, StarredDatabaseHelper.queryLatestVersion(db));
+    }
+
+    public void testUpgradeAndLoadLargeVersion1() {
+        final SQLiteDatabase v1 = createVersion1();
+        final SQLiteStatement insert = v1.compileStatement("INSERT INTO " + TABLE_STARRED
+                + " (" + COLUMN_ID + ", " + COLUMN_STARRED_V1 + ") VALUES (?, ?)");
+        v1.beginTransaction();
+        try {
+            for (int id = 1; id <= LARGE_ROWS; id++) {
+                insert.bindLong(1, id);
+                insert.bindLong(2, id % 10 == 0 ? 1 : 0);
+                insert.executeInsert();
+            }
+            v1.setTransactionSuccessful();
+        } finally {
+            v1.endTransaction();
+            insert.close();
+        }
+        v1.close();
+
+        long start = System.nanoTime();
+        mStarredDb.getWritableDatabase();
+        final long upgradeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final LongBooleanMap loaded = new StarredLoader(mTestContext, mStarredDb)
+                .loadInBackground();
+        final long loadNanos = System.nanoTime() - start;
+
+        assertEquals(LARGE_ROWS / 10, loaded.size());
+        assertTrue(loaded.get(10));
+        assertFalse(loaded.get(11));
+        Log.i(TAG, "Upgrading " + LARGE_ROWS + " version 1 rows took "
+                + (upgradeNanos / 1000000) + "ms, then loading " + loaded.size()
+                + " starred photos took " + (loadNanos / 1000000) + "ms");
+    }
+
+    /**
+     * Returns the database at version 1, as created by the first release.
+     */
+    private SQLiteDatabase createVersion1() {
+        final SQLiteDatabase db = mTestContext.openOrCreateDatabase(
+                mStarredDb.getDatabaseName(), Context.MODE_PRIVATE, null);
+        db.execSQL("CREATE TABLE " + TABLE_STARRED + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY ON CONFLICT REPLACE, "
+                + COLUMN_STARRED_V1 + " INTEGER DEFAULT 0)");
+        db.setVersion(1);
+        return db;
+    }
+
+    private static void insertVersion1(SQLiteDatabase db, long id, boolean starred) {
+        db.execSQL("INSERT INTO " + TABLE_STARRED + " (" + COLUMN_ID + ", "
+                + COLUMN_STARRED_V1 + ") VALUES (?, ?)", new Object[] { id, starred ? 1 : 0 });
+    }
+
+    private static TreeSet<Long> set(long... ids) {
+        final TreeSet<Long> set = new TreeSet<Long>();
+        for (long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    private static TreeSet<Long> readTable(SQLiteDatabase db) {
+        final TreeSet<Long> starred = new TreeSet<Long>();
+        final Cursor cursor = db.query(TABLE_STARRED,
+                new String[] { COLUMN_ID }, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                starred.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return starred;
+    }
+}
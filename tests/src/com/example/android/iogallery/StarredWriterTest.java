@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.iogallery;
+
+import static com.example.android.iogallery.StarredDatabaseHelper.COLUMN_ID;
+import static com.example.android.iogallery.StarredDatabaseHelper.COLUMN_STARRED;
+import static com.example.android.iogallery.StarredDatabaseHelper.COLUMN_VERSION;
+import static com.example.android.iogallery.StarredDatabaseHelper.TABLE_CHANGES;
+import static com.example.android.iogallery.StarredDatabaseHelper.TABLE_STARRED;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import com.example.android.util.LongSparseBooleanArray;
+
+import java.util.TreeSet;
+
+/**
+ * Checks that {@link StarredWriter} keeps the starred table and its change
+ * journal in step when a write fails partway, since {@link StarredLoader}
+ * trusts the journal to bring an older copy of the table up to date, and
+ * reports how many rows a second it writes compared to per-row inserts.
+ */
+public class StarredWriterTest extends AndroidTestCase {
+    private static final String TAG = "IoGallery";
+
+    /** Photos starred at once when timing writes with transactions. */
+    private static final int LARGE_ROWS = 10000;
+
+    /** Photos starred when timing writes without, each its own commit. */
+    private static final int SMALL_ROWS = 500;
+
+    /** Photo whose journal entry fails when it is unstarred. */
+    private static final long FAILING_ID = 1000;
+
+    private Context mTestContext;
+    private StarredDatabaseHelper mStarredDb;
+    private StarredWriter mWriter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestContext = new RenamingDelegatingContext(getContext(), "test.");
+        mStarredDb = new StarredDatabaseHelper(mTestContext);
+        mTestContext.deleteDatabase(mStarredDb.getDatabaseName());
+        mWriter = new StarredWriter(mStarredDb);
+
+        // Fails after the row of FAILING_ID has already been deleted
+        mStarredDb.getWritableDatabase().execSQL("CREATE TRIGGER fail_unstar BEFORE INSERT ON "
+                + TABLE_CHANGES + " WHEN NEW." + COLUMN_ID + " = " + FAILING_ID
+                + " AND NEW." + COLUMN_STARRED + " = 0"
+                + " BEGIN SELECT RAISE(ABORT, 'failing unstar'); END");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStarredDb.close();
+        mTestContext.deleteDatabase(mStarredDb.getDatabaseName());
+        super.tearDown();
+    }
+
+    public void testFailedWriteWithTransactions() {
+        final long[] ids = { 1, 2, FAILING_ID, 2000, 3000 };
+        mWriter.write(changes(ids, true), true);
+        unstarExpectingFailure(ids, true);
+
+        // Whole chunk rolled back
+        assertEquals(set(ids), readTable());
+        assertEquals(readTable(), replayJournal());
+    }
+
+    public void testFailedWriteWithoutTransactions() {
+        final long[] ids = { 1, 2, FAILING_ID, 2000, 3000 };
+        mWriter.write(changes(ids, true), false);
+        unstarExpectingFailure(ids, false);
+
+        // Photos before the failure stay unstarred, and the failing one keeps
+        // its row along with its journal entry
+        assertEquals(set(FAILING_ID, 2000, 3000), readTable());
+        assertEquals(readTable(), replayJournal());
+    }
+
+    public void testThroughput() {
+        for (boolean transactions : new boolean[] { true, false }) {
+            final long[] ids = new long[transactions ? LARGE_ROWS : SMALL_ROWS];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i + 1;
+            }
+
+            long start = System.nanoTime();
+            insertPerRow(ids, transactions);
+            final long insertNanos = System.nanoTime() - start;
+            assertEquals(set(ids), readTable());
+            clearTables();
+
+            start = System.nanoTime();
+            assertEquals(ids.length, mWriter.write(changes(ids, true), transactions));
+            final long writerNanos = System.nanoTime() - start;
+            assertEquals(set(ids), readTable());
+            clearTables();
+
+            Log.i(TAG, "Starring " + ids.length + " photos " + (transactions ? "with" : "without")
+                    + " transactions: per-row inserts " + rowsPerSecond(ids.length, insertNanos)
+                    + " rows/s, StarredWriter " + rowsPerSecond(ids.length, writerNanos)
+                    + " rows/s");
+        }
+    }
+
+    /**
+     * Writes the rows {@link StarredWriter} would for starring {@code ids},
+     * the way {@code StarredPersistTask} used to: an insert built from
+     * {@link ContentValues} per row, all in one transaction if any.
+     */
+    private void insertPerRow(long[] ids, boolean transactions) {
+        final SQLiteDatabase db = mStarredDb.getWritableDatabase();
+        final ContentValues values = new ContentValues();
+        final ContentValues change = new ContentValues();
+        change.put(COLUMN_STARRED, 1);
+
+        if (transactions) db.beginTransaction();
+        try {
+            for (long id : ids) {
+                values.put(COLUMN_ID, id);
+                db.insert(TABLE_STARRED, null, values);
+                change.put(COLUMN_ID, id);
+                db.insert(TABLE_CHANGES, null, change);
+            }
+            if (transactions) db.setTransactionSuccessful();
+        } finally {
+            if (transactions) db.endTransaction();
+        }
+    }
+
+    private void clearTables() {
+        final SQLiteDatabase db = mStarredDb.getWritableDatabase();
+        db.delete(TABLE_STARRED, null, null);
+        db.delete(TABLE_CHANGES, null, null);
+    }
+
+    private static long rowsPerSecond(int rows, long nanos) {
+        return rows * 1000000000L / Math.max(1, nanos);
+    }
+
+    private void unstarExpectingFailure(long[] ids, boolean transactions) {
+        try {
+            mWriter.write(changes(ids, false), transactions);
+            fail("Expected unstarring " + FAILING_ID + " to fail");
+        } catch (SQLiteException expected) {
+        }
+    }
+
+    /**
+     * Returns every id in {@code ids} mapped to {@code starred}, in ascending
+     * order so that the write reaches them in a known order.
+     */
+    private static LongSparseBooleanArray changes(long[] ids, boolean starred) {
+        final LongSparseBooleanArray changes = new LongSparseBooleanArray();
+        for (long id : ids) {
+            changes.put(id, starred);
+        }
+        return changes;
+    }
+
+    private static TreeSet<Long> set(long... ids) {
+        final TreeSet<Long> set = new TreeSet<Long>();
+        for (long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    private TreeSet<Long> readTable() {
+        final TreeSet<Long> starred = new TreeSet<Long>();
+        final Cursor cursor = mStarredDb.getReadableDatabase().query(TABLE_STARRED,
+                new String[] { COLUMN_ID }, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                starred.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return starred;
+    }
+
+    /**
+     * Returns the starred set obtained by applying every journaled change,
+     * in order, to an empty table.
+     */
+    private TreeSet<Long> replayJournal() {
+        final SQLiteDatabase db = mStarredDb.getReadableDatabase();
+        final TreeSet<Long> starred = new TreeSet<Long>();
+        final Cursor cursor = db.query(TABLE_CHANGES,
+                new String[] { COLUMN_ID, COLUMN_STARRED }, null, null, null, null,
+                COLUMN_VERSION);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(1) != 0) {
+                    starred.add(cursor.getLong(0));
+                } else {
+                    starred.remove(cursor.getLong(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return starred;
+    }
+}
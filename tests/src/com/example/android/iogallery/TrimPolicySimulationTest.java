@@ -0,0 +1,351 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.iogallery;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import com.example.android.util.LruCache;
+import com.example.android.util.WTinyLfuPolicy;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replays sequences of {@code onTrimMemory()} levels against a simulated
+ * thumbnail cache, comparing {@link DefaultTrimPolicy} with the thresholds
+ * the activity used to hard-code, and reports how many thumbnails each makes
+ * the user wait for again once back in the grid.
+ *
+ * <p>The cache is a real {@link LruCache} under {@link WTinyLfuPolicy}, sized
+ * like {@link ThumbnailCache} on a 64 MB memory class device, with entries
+ * weighing what their thumbnails would. Trimming picks entries the way
+ * {@link ThumbnailCache#trimMemory} does. Misses are served from a disk tier
+ * of every recently decoded thumbnail, as {@link ThumbnailCache} writes each
+ * decode there, or else decoded again. Memory counts displayed thumbnails
+ * whether or not they are still cached, since their views hold on to them.
+ */
+public class TrimPolicySimulationTest extends TestCase {
+    private static final String TAG = "IoGallery";
+
+    // Foreground levels, added to ComponentCallbacks2 in API 16
+    private static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+
+    private static final int ALBUM_SIZE = 2000;
+    private static final int VISIBLE_CELLS = 12;
+    private static final int THUMBNAIL_BYTES = 512 * 384 * 4;
+    private static final long MAX_SIZE = 32 * 1024 * 1024;
+    private static final int DISK_THUMBNAILS = 1000;
+
+    /** Rough cost of each kind of miss, only used to weigh them together. */
+    private static final int DECODE_MILLIS = 40;
+    private static final int DISK_READ_MILLIS = 8;
+
+    /** Grid positions the user keeps returning to. */
+    private static final int[] FAVORITES = { 40, 700, 1300, 1850 };
+
+    private static final int WARM_UP_STEPS = 3000;
+    private static final int RETURN_STEPS = 150;
+
+    public void testBriefTripAwayCostsNothing() {
+        final Result[] results = simulate("brief trip away",
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0, results[1].extraDecodes);
+        assertEquals(0, results[1].extraDiskReads);
+    }
+
+    public void testBackgroundTrim() {
+        // Halving the cache may evict displayed thumbnails, which frees
+        // nothing, while the policy keeps them and really halves memory
+        final Result[] results = simulate("background",
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+                ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertTrue(results[1].freedBytes >= results[0].freedBytes);
+        assertTrue(results[1].keptBytes <= MAX_SIZE / 2);
+    }
+
+    public void testModerateTrimAfterBackground() {
+        final Result[] results = simulate("background",
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+                ComponentCallbacks2.TRIM_MEMORY_BACKGROUND,
+                ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        // Emptying the cache keeps only what is displayed, so the policy
+        // keeping a quarter ends up keeping much the same
+        assertTrue(results[1].keptBytes <= MAX_SIZE / 4);
+        assertTrue(results[1].freedBytes >= results[0].freedBytes);
+    }
+
+    public void testForegroundTrims() {
+        // Hard-coded thresholds ignored these, so only check that memory is
+        // actually given back
+        final Result[] results = simulate("foreground",
+                TRIM_MEMORY_RUNNING_MODERATE, TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(0, results[0].freedBytes);
+        assertTrue(results[1].keptBytes <= MAX_SIZE / 2);
+    }
+
+    /**
+     * Replay {@code levels} with the old thresholds and with
+     * {@link DefaultTrimPolicy}, logging and returning their results in that
+     * order.
+     */
+    private static Result[] simulate(String name, int... levels) {
+        final int[] trace = generateTrace(WARM_UP_STEPS + RETURN_STEPS);
+        final Simulator baseline = new Simulator();
+        baseline.replay(trace, 0, trace.length);
+
+        final Trimmer[] trimmers = {
+                new LegacyTrimmer(), new PolicyTrimmer(new DefaultTrimPolicy()) };
+        final Result[] results = new Result[trimmers.length];
+        for (int i = 0; i < trimmers.length; i++) {
+            final Simulator simulator = new Simulator();
+            simulator.replay(trace, 0, WARM_UP_STEPS);
+            final int decodes = simulator.decodes;
+            final int diskReads = simulator.diskReads;
+            final long size = simulator.memory();
+            for (int level : levels) {
+                trimmers[i].trim(simulator, level);
+            }
+            final long kept = simulator.memory();
+            final long freed = size - kept;
+            simulator.replay(trace, WARM_UP_STEPS, trace.length);
+
+            results[i] = new Result(freed, kept,
+                    simulator.decodes - decodes - baseline.decodesAfter(WARM_UP_STEPS),
+                    simulator.diskReads - diskReads - baseline.diskReadsAfter(WARM_UP_STEPS));
+            Log.i(TAG, "Trim simulation, " + name + " " + levelsToString(levels) + ", "
+                    + trimmers[i] + ": freed " + (freed / 1024) + " KB, then "
+                    + results[i].extraDecodes + " extra decodes and "
+                    + results[i].extraDiskReads + " extra disk reads, about "
+                    + results[i].extraMillis() + "ms");
+        }
+        return results;
+    }
+
+    /**
+     * Returns the first visible grid position at each step of a session that
+     * mostly scrolls forward, sometimes back, and often jumps back to a
+     * favorite part of the album.
+     */
+    private static int[] generateTrace(int steps) {
+        final Random random = new Random(42);
+        final int[] trace = new int[steps];
+        int position = 0;
+        for (int i = 0; i < steps; i++) {
+            if (random.nextInt(4) == 0) {
+                position = FAVORITES[random.nextInt(FAVORITES.length)];
+            } else {
+                position += random.nextInt(25) - 6;
+            }
+            position = Math.max(0, Math.min(ALBUM_SIZE - VISIBLE_CELLS, position));
+            trace[i] = position;
+        }
+        return trace;
+    }
+
+    /**
+     * Returns the size of the thumbnail for {@code id}, smaller for the
+     * occasional panorama since thumbnails keep the aspect ratio of the
+     * photo.
+     */
+    private static int thumbnailBytes(long id) {
+        return id % 7 == 0 ? THUMBNAIL_BYTES / 3 : THUMBNAIL_BYTES;
+    }
+
+    private static String levelsToString(int[] levels) {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < levels.length; i++) {
+            builder.append(i == 0 ? "" : ", ").append(levels[i]);
+        }
+        return builder.append(']').toString();
+    }
+
+    private static class Result {
+        final long freedBytes;
+        final long keptBytes;
+        final int extraDecodes;
+        final int extraDiskReads;
+
+        public Result(long freedBytes, long keptBytes, int extraDecodes, int extraDiskReads) {
+            this.freedBytes = freedBytes;
+            this.keptBytes = keptBytes;
+            this.extraDecodes = extraDecodes;
+            this.extraDiskReads = extraDiskReads;
+        }
+
+        public int extraMillis() {
+            return extraDecodes * DECODE_MILLIS + extraDiskReads * DISK_READ_MILLIS;
+        }
+    }
+
+    /**
+     * Thumbnail cache backed by a disk tier, counting how its misses are
+     * served.
+     */
+    private static class Simulator {
+        final WTinyLfuPolicy<Long> policy = new WTinyLfuPolicy<Long>(
+                MAX_SIZE, (int) (MAX_SIZE / THUMBNAIL_BYTES));
+        final LruCache<Long, Integer> cache = new LruCache<Long, Integer>(
+                MAX_SIZE, false, policy) {
+            @Override
+            protected int sizeOf(Long key, Integer value) {
+                return value;
+            }
+        };
+        final LinkedHashMap<Long, Boolean> disk = new LinkedHashMap<Long, Boolean>(
+                0, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > DISK_THUMBNAILS;
+            }
+        };
+
+        int first = -1;
+        int decodes;
+        int diskReads;
+        private final ArrayList<Integer> decodesByStep = new ArrayList<Integer>();
+        private final ArrayList<Integer> diskReadsByStep = new ArrayList<Integer>();
+
+        /**
+         * Scroll through {@code trace} from {@code start} to {@code end},
+         * binding each cell that comes into view.
+         */
+        public void replay(int[] trace, int start, int end) {
+            for (int i = start; i < end; i++) {
+                final int previous = first;
+                first = trace[i];
+                for (int position = first; position < first + VISIBLE_CELLS; position++) {
+                    if (previous < 0 || position < previous
+                            || position >= previous + VISIBLE_CELLS) {
+                        bind(position);
+                    }
+                }
+                decodesByStep.add(decodes);
+                diskReadsByStep.add(diskReads);
+            }
+        }
+
+        public int decodesAfter(int step) {
+            return decodes - decodesByStep.get(step - 1);
+        }
+
+        public int diskReadsAfter(int step) {
+            return diskReads - diskReadsByStep.get(step - 1);
+        }
+
+        public boolean isVisible(long id) {
+            return first >= 0 && id >= first && id < first + VISIBLE_CELLS;
+        }
+
+        /**
+         * Returns the bytes of every cached or displayed thumbnail.
+         */
+        public long memory() {
+            long memory = cache.size();
+            for (long id = Math.max(0, first); id < first + VISIBLE_CELLS; id++) {
+                if (cache.peek(id) == null) {
+                    memory += thumbnailBytes(id);
+                }
+            }
+            return memory;
+        }
+
+        private void bind(long id) {
+            if (cache.get(id) != null) {
+                return;
+            }
+            if (disk.get(id) != null) {
+                diskReads++;
+            } else {
+                decodes++;
+                disk.put(id, true);
+            }
+            cache.put(id, thumbnailBytes(id));
+        }
+    }
+
+    private interface Trimmer {
+        void trim(Simulator simulator, int level);
+    }
+
+    /**
+     * Thresholds the activity hard-coded before {@link TrimPolicy}.
+     */
+    private static class LegacyTrimmer implements Trimmer {
+        @Override
+        public void trim(Simulator simulator, int level) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                simulator.cache.evictAll();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                simulator.cache.trimToSize(simulator.cache.size() / 2);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "hard-coded";
+        }
+    }
+
+    /**
+     * Trims to the size chosen by a {@link TrimPolicy} like
+     * {@link ThumbnailCache#trimMemory}: in eviction order, keeping visible
+     * thumbnails.
+     */
+    private static class PolicyTrimmer implements Trimmer {
+        private final TrimPolicy mPolicy;
+
+        public PolicyTrimmer(TrimPolicy policy) {
+            mPolicy = policy;
+        }
+
+        @Override
+        public void trim(Simulator simulator, int level) {
+            final LruCache<Long, Integer> cache = simulator.cache;
+            final long target = Math.max(0,
+                    mPolicy.targetSize(level, cache.size(), cache.maxSize()));
+            final boolean spill = mPolicy.shouldSpill(level);
+            final List<Long> victims = new ArrayList<Long>();
+            long remaining = cache.size();
+            for (Long id : cache.keysInEvictionOrder(Integer.MAX_VALUE)) {
+                if (remaining <= target) {
+                    break;
+                }
+                if (simulator.isVisible(id)) {
+                    continue;
+                }
+                if (spill && !simulator.disk.containsKey(id)) {
+                    simulator.disk.put(id, true);
+                }
+                victims.add(id);
+                remaining -= cache.peek(id);
+            }
+            cache.removeVictims(victims);
+        }
+
+        @Override
+        public String toString() {
+            return mPolicy.getClass().getSimpleName();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Checks {@link LongBitmap} against a {@link TreeSet} where containers switch
+ * between sorted arrays and bitmaps. Every check also round trips the set
+ * through {@link LongBitmap#writeTo}, which writes each container as it is
+ * held while {@link LongBitmap#readFrom} tells them apart by cardinality, so
+ * a container left in the wrong form fails to read back.
+ */
+public class LongBitmapTest extends TestCase {
+    /** Largest container {@link LongBitmap} holds as an array. */
+    private static final int ARRAY_MAX = 4096;
+
+    public void testAddAndRemoveAtBoundary() {
+        final LongBitmap bitmap = new LongBitmap();
+        final TreeSet<Long> expected = new TreeSet<Long>();
+        for (int i = 0; i < ARRAY_MAX; i++) {
+            add(bitmap, expected, i * 3L);
+        }
+        assertSameValues(expected, bitmap);
+
+        // One more makes a bitmap, and removing it an array again
+        add(bitmap, expected, 1);
+        assertSameValues(expected, bitmap);
+        assertTrue(bitmap.remove(1));
+        expected.remove(1L);
+        assertSameValues(expected, bitmap);
+
+        assertFalse(bitmap.remove(1));
+        assertFalse(bitmap.add(3));
+        for (int i = 0; i < ARRAY_MAX; i++) {
+            assertTrue(bitmap.remove(i * 3L));
+        }
+        assertTrue(bitmap.isEmpty());
+        assertSameValues(new TreeSet<Long>(), bitmap);
+    }
+
+    public void testOrArraysIntoBitmap() {
+        // Overlapping arrays whose union just fits in an array
+        final LongBitmap a = range(0, ARRAY_MAX - 100);
+        a.or(range(ARRAY_MAX - 200, ARRAY_MAX));
+        assertSameValues(expectedRange(0, ARRAY_MAX), a);
+
+        // One more value than fits
+        final LongBitmap b = range(0, ARRAY_MAX - 100);
+        b.or(range(ARRAY_MAX - 200, ARRAY_MAX + 1));
+        assertSameValues(expectedRange(0, ARRAY_MAX + 1), b);
+    }
+
+    public void testOrArrayAndBitmap() {
+        final LongBitmap array = range(9000, 9000 + ARRAY_MAX);
+        final LongBitmap bitmap = range(0, 2 * ARRAY_MAX);
+        final TreeSet<Long> expected = expectedRange(0, 2 * ARRAY_MAX);
+        expected.addAll(expectedRange(9000, 9000 + ARRAY_MAX));
+
+        final LongBitmap arrayFirst = array.clone();
+        arrayFirst.or(bitmap);
+        assertSameValues(expected, arrayFirst);
+
+        final LongBitmap bitmapFirst = bitmap.clone();
+        bitmapFirst.or(array);
+        assertSameValues(expected, bitmapFirst);
+
+        // Neither operand changed
+        assertSameValues(expectedRange(9000, 9000 + ARRAY_MAX), array);
+        assertSameValues(expectedRange(0, 2 * ARRAY_MAX), bitmap);
+    }
+
+    public void testOrMergesContainers() {
+        final LongBitmap a = LongBitmap.of(-70000, 5, 1L << 20, Long.MAX_VALUE);
+        a.or(LongBitmap.of(Long.MIN_VALUE, 6, 1L << 20, 1L << 40));
+        final TreeSet<Long> expected = new TreeSet<Long>();
+        for (long value : new long[] { Long.MIN_VALUE, -70000, 5, 6, 1L << 20, 1L << 40,
+                Long.MAX_VALUE }) {
+            expected.add(value);
+        }
+        assertSameValues(expected, a);
+    }
+
+    public void testAndNotBitmapIntoArray() {
+        final int size = ARRAY_MAX + 1000;
+
+        // Leaves one value more than fits in an array
+        final LongBitmap stillBitmap = range(0, size);
+        stillBitmap.andNot(range(0, 999));
+        assertSameValues(expectedRange(999, size), stillBitmap);
+
+        final LongBitmap bitmapByArray = range(0, size);
+        bitmapByArray.andNot(range(0, 1000));
+        assertSameValues(expectedRange(1000, size), bitmapByArray);
+
+        final LongBitmap bitmapByBitmap = range(0, size);
+        bitmapByBitmap.andNot(range(1000, 2 * size));
+        assertSameValues(expectedRange(0, 1000), bitmapByBitmap);
+    }
+
+    public void testAndNotDropsEmptyContainers() {
+        final LongBitmap bitmap = range(0, 2 * ARRAY_MAX);
+        bitmap.or(LongBitmap.of(1L << 20, 1L << 40));
+        bitmap.andNot(range(0, 2 * ARRAY_MAX));
+        bitmap.andNot(LongBitmap.of(1L << 40));
+
+        final TreeSet<Long> expected = new TreeSet<Long>();
+        expected.add(1L << 20);
+        assertSameValues(expected, bitmap);
+
+        bitmap.andNot(LongBitmap.of(1L << 20));
+        assertTrue(bitmap.isEmpty());
+    }
+
+    public void testRandomOperations() {
+        final Random random = new Random(1);
+        final LongBitmap bitmap = new LongBitmap();
+        final TreeSet<Long> expected = new TreeSet<Long>();
+        for (int round = 0; round < 40; round++) {
+            // Keep a few containers hovering around the boundary
+            final LongBitmap other = new LongBitmap();
+            final TreeSet<Long> otherExpected = new TreeSet<Long>();
+            for (int i = 0; i < 3000; i++) {
+                final long value = ((long) random.nextInt(3) << 16) + random.nextInt(9000);
+                other.add(value);
+                otherExpected.add(value);
+            }
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    bitmap.or(other);
+                    expected.addAll(otherExpected);
+                    break;
+                case 1:
+                    bitmap.andNot(other);
+                    expected.removeAll(otherExpected);
+                    break;
+                default:
+                    for (Long value : otherExpected) {
+                        assertEquals(expected.remove(value), bitmap.remove(value));
+                    }
+                    break;
+            }
+            assertSameValues(expected, bitmap);
+        }
+    }
+
+    private static void add(LongBitmap bitmap, TreeSet<Long> expected, long value) {
+        assertTrue(bitmap.add(value));
+        expected.add(value);
+    }
+
+    /**
+     * Returns a bitmap of every value from {@code start} up to {@code end}.
+     */
+    private static LongBitmap range(long start, long end) {
+        final LongBitmap bitmap = new LongBitmap();
+        for (long value = start; value < end; value++) {
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    private static TreeSet<Long> expectedRange(long start, long end) {
+        final TreeSet<Long> expected = new TreeSet<Long>();
+        for (long value = start; value < end; value++) {
+            expected.add(value);
+        }
+        return expected;
+    }
+
+    private static void assertSameValues(TreeSet<Long> expected, LongBitmap actual) {
+        assertEquals(expected.size(), actual.size());
+        final long[] values = actual.toArray();
+        int i = 0;
+        for (Long value : expected) {
+            assertEquals(value.longValue(), values[i++]);
+            assertTrue(actual.contains(value));
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(actual.serializedSize());
+        actual.writeTo(buffer);
+        assertEquals(0, buffer.remaining());
+        buffer.flip();
+        final long[] readBack = LongBitmap.readFrom(buffer).toArray();
+        assertEquals(values.length, readBack.length);
+        for (int j = 0; j < values.length; j++) {
+            assertEquals(values[j], readBack[j]);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that deleting from a {@link LongBooleanHashMap} keeps every other
+ * key reachable, for probe runs built from keys that share a home slot,
+ * keys whose runs overlap, and runs that wrap around the end of the table.
+ */
+public class LongBooleanHashMapTest extends TestCase {
+    /** Table size of a map created for {@link #EXPECTED_SIZE} mappings. */
+    private static final int CAPACITY = 16;
+    private static final int EXPECTED_SIZE = 12;
+
+    public void testDeleteFromSharedHomeSlot() {
+        final List<Long> keys = keysWithHome(3, 5);
+        for (int deleted = 0; deleted < keys.size(); deleted++) {
+            final LongBooleanHashMap map = new LongBooleanHashMap(EXPECTED_SIZE);
+            final Map<Long, Boolean> expected = new HashMap<Long, Boolean>();
+            for (int i = 0; i < keys.size(); i++) {
+                put(map, expected, keys.get(i), i % 2 == 0);
+            }
+            delete(map, expected, keys.get(deleted));
+            assertSameMappings(expected, map);
+
+            // The freed slot is usable again
+            put(map, expected, keys.get(deleted), true);
+            assertSameMappings(expected, map);
+        }
+    }
+
+    public void testDeleteFromOverlappingRuns() {
+        // Keys homed at 5 and 6, inserted so that the runs interleave
+        final List<Long> fives = keysWithHome(5, 3);
+        final List<Long> sixes = keysWithHome(6, 3);
+        final LongBooleanHashMap map = new LongBooleanHashMap(EXPECTED_SIZE);
+        final Map<Long, Boolean> expected = new HashMap<Long, Boolean>();
+        for (int i = 0; i < 3; i++) {
+            put(map, expected, fives.get(i), true);
+            put(map, expected, sixes.get(i), false);
+        }
+        delete(map, expected, fives.get(0));
+        assertSameMappings(expected, map);
+        delete(map, expected, sixes.get(1));
+        assertSameMappings(expected, map);
+        delete(map, expected, fives.get(2));
+        assertSameMappings(expected, map);
+    }
+
+    public void testDeleteFromWrappedRun() {
+        // Run starting in the last slot continues at the start of the table,
+        // where keys homed at 0 must stay and the key homed last must move
+        final List<Long> lasts = keysWithHome(CAPACITY - 1, 2);
+        final List<Long> firsts = keysWithHome(0, 2);
+        final List<Long> keys = new ArrayList<Long>();
+        keys.add(lasts.get(0));
+        keys.addAll(firsts);
+        keys.add(lasts.get(1));
+        for (int deleted = 0; deleted < keys.size(); deleted++) {
+            final LongBooleanHashMap map = new LongBooleanHashMap(EXPECTED_SIZE);
+            final Map<Long, Boolean> expected = new HashMap<Long, Boolean>();
+            for (int i = 0; i < keys.size(); i++) {
+                put(map, expected, keys.get(i), i % 2 == 0);
+            }
+            delete(map, expected, keys.get(deleted));
+            assertSameMappings(expected, map);
+        }
+    }
+
+    public void testZeroKey() {
+        final LongBooleanHashMap map = new LongBooleanHashMap();
+        final Map<Long, Boolean> expected = new HashMap<Long, Boolean>();
+        put(map, expected, 0, true);
+        put(map, expected, 16, false);
+        assertSameMappings(expected, map);
+        delete(map, expected, 0);
+        assertSameMappings(expected, map);
+        delete(map, expected, 0);
+        assertSameMappings(expected, map);
+    }
+
+    public void testRandomChurn() {
+        final Random random = new Random(1);
+        final LongBooleanHashMap map = new LongBooleanHashMap();
+        final Map<Long, Boolean> expected = new HashMap<Long, Boolean>();
+        for (int i = 0; i < 20000; i++) {
+            // Small key range so that deletes mostly hit and runs stay long
+            final long key = random.nextInt(600) - 100;
+            if (random.nextInt(3) == 0) {
+                delete(map, expected, key);
+            } else {
+                put(map, expected, key, random.nextBoolean());
+            }
+            if (i % 1000 == 0) {
+                assertSameMappings(expected, map);
+            }
+        }
+        assertSameMappings(expected, map);
+    }
+
+    /**
+     * Returns the first {@code count} positive keys whose home slot in a
+     * table of {@link #CAPACITY} slots is {@code home}, hashing them the way
+     * {@link LongBooleanHashMap} does.
+     */
+    private static List<Long> keysWithHome(int home, int count) {
+        final int shift = 64 - Integer.numberOfTrailingZeros(CAPACITY);
+        final List<Long> keys = new ArrayList<Long>();
+        for (long key = 1; keys.size() < count; key++) {
+            if ((int) ((key * 0x9E3779B97F4A7C15L) >>> shift) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static void put(LongBooleanHashMap map, Map<Long, Boolean> expected,
+            long key, boolean value) {
+        map.put(key, value);
+        expected.put(key, value);
+    }
+
+    private static void delete(LongBooleanHashMap map, Map<Long, Boolean> expected, long key) {
+        map.delete(key);
+        expected.remove(key);
+        assertFalse(map.containsKey(key));
+    }
+
+    private static void assertSameMappings(Map<Long, Boolean> expected, LongBooleanHashMap map) {
+        assertEquals(expected.size(), map.size());
+        int trues = 0;
+        for (Map.Entry<Long, Boolean> entry : expected.entrySet()) {
+            assertTrue(map.containsKey(entry.getKey()));
+            assertEquals(entry.getValue().booleanValue(),
+                    map.get(entry.getKey(), !entry.getValue()));
+            if (entry.getValue()) {
+                trues++;
+            }
+        }
+
+        final long[] trueKeys = map.keysMappedTo(true);
+        assertEquals(trues, trueKeys.length);
+        for (long key : trueKeys) {
+            assertEquals(Boolean.TRUE, expected.get(key));
+        }
+        final long[] falseKeys = map.keysMappedTo(false);
+        assertEquals(expected.size() - trues, falseKeys.length);
+        for (long key : falseKeys) {
+            assertEquals(Boolean.FALSE, expected.get(key));
+        }
+    }
+}
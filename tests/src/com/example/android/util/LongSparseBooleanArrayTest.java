@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks the bulk paths of {@link LongSparseBooleanArray} against a
+ * {@link TreeMap}: {@link LongSparseBooleanArray#build} from sorted,
+ * unsorted and duplicated input, and the linear merge of
+ * {@link LongSparseBooleanArray#putAll}.
+ */
+public class LongSparseBooleanArrayTest extends TestCase {
+    public void testBuildSorted() {
+        final long[] keys = { -5, 0, 3, 3, 9 };
+        final boolean[] values = { true, false, false, true, true };
+        assertSameMappings(expected(keys, values, keys.length),
+                LongSparseBooleanArray.build(keys, values, keys.length));
+    }
+
+    public void testBuildUnsortedKeepsLastOfEqualKeys() {
+        final long[] keys = { 9, 3, -5, 3, 0, 9, 3 };
+        final boolean[] values = { false, true, true, false, false, true, true };
+        final long[] keysCopy = keys.clone();
+        final boolean[] valuesCopy = values.clone();
+
+        final LongSparseBooleanArray array = LongSparseBooleanArray.build(keys, values, 6);
+        assertSameMappings(expected(keys, values, 6), array);
+        assertFalse(array.get(3, true));
+
+        // Input left alone
+        assertTrue(Arrays.equals(keysCopy, keys));
+        assertTrue(Arrays.equals(valuesCopy, values));
+    }
+
+    public void testBuildEmpty() {
+        final LongSparseBooleanArray array =
+                LongSparseBooleanArray.build(new long[0], new boolean[0], 0);
+        assertEquals(0, array.size());
+        array.put(1, true);
+        assertTrue(array.get(1));
+    }
+
+    public void testPutAllInterleaved() {
+        final LongSparseBooleanArray array = array(new long[] { 1, 4, 7, 10 }, true);
+        array.putAll(array(new long[] { -2, 4, 5, 10, 12 }, false));
+
+        final TreeMap<Long, Boolean> expected = new TreeMap<Long, Boolean>();
+        for (long key : new long[] { 1, 7 }) {
+            expected.put(key, true);
+        }
+        for (long key : new long[] { -2, 4, 5, 10, 12 }) {
+            expected.put(key, false);
+        }
+        assertSameMappings(expected, array);
+    }
+
+    public void testPutAllAppendsWhenGreater() {
+        final LongSparseBooleanArray array = array(new long[] { 1, 2 }, true);
+        array.putAll(array(new long[] { 3, 4, 5 }, false));
+        array.putAll(new LongSparseBooleanArray());
+
+        final LongSparseBooleanArray empty = new LongSparseBooleanArray(0);
+        empty.putAll(array);
+
+        final TreeMap<Long, Boolean> expected = new TreeMap<Long, Boolean>();
+        expected.put(1L, true);
+        expected.put(2L, true);
+        expected.put(3L, false);
+        expected.put(4L, false);
+        expected.put(5L, false);
+        assertSameMappings(expected, array);
+        assertSameMappings(expected, empty);
+    }
+
+    public void testPutAllLeavesOtherAlone() {
+        final LongSparseBooleanArray array = array(new long[] { 1, 3 }, true);
+        final LongSparseBooleanArray other = array(new long[] { 2, 3 }, false);
+        array.putAll(other);
+        other.put(4, true);
+        assertFalse(array.get(4, false));
+        assertEquals(3, array.size());
+    }
+
+    public void testRandomBuildAndPutAll() {
+        final Random random = new Random(1);
+        for (int trial = 0; trial < 200; trial++) {
+            final int count = random.nextInt(300);
+            final long[] keys = new long[count];
+            final boolean[] values = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = random.nextInt(400) - 200;
+                values[i] = random.nextBoolean();
+            }
+            final LongSparseBooleanArray array =
+                    LongSparseBooleanArray.build(keys, values, count);
+            final TreeMap<Long, Boolean> expected = expected(keys, values, count);
+            assertSameMappings(expected, array);
+
+            final LongSparseBooleanArray other = new LongSparseBooleanArray();
+            for (int i = random.nextInt(200); i > 0; i--) {
+                final long key = random.nextInt(600) - 300;
+                final boolean value = random.nextBoolean();
+                other.put(key, value);
+                expected.put(key, value);
+            }
+            array.putAll(other);
+            assertSameMappings(expected, array);
+        }
+    }
+
+    public void testAppendGrows() {
+        final LongSparseBooleanArray array = new LongSparseBooleanArray(0);
+        final TreeMap<Long, Boolean> expected = new TreeMap<Long, Boolean>();
+        for (long key = 0; key < 10000; key++) {
+            array.append(key, key % 3 == 0);
+            expected.put(key, key % 3 == 0);
+        }
+        // Out of order, so falls back to put()
+        array.append(-1, true);
+        expected.put(-1L, true);
+        assertSameMappings(expected, array);
+    }
+
+    private static LongSparseBooleanArray array(long[] keys, boolean value) {
+        final LongSparseBooleanArray array = new LongSparseBooleanArray();
+        for (long key : keys) {
+            array.put(key, value);
+        }
+        return array;
+    }
+
+    /**
+     * Returns what putting the first {@code count} mappings in turn leaves.
+     */
+    private static TreeMap<Long, Boolean> expected(long[] keys, boolean[] values, int count) {
+        final TreeMap<Long, Boolean> expected = new TreeMap<Long, Boolean>();
+        for (int i = 0; i < count; i++) {
+            expected.put(keys[i], values[i]);
+        }
+        return expected;
+    }
+
+    private static void assertSameMappings(TreeMap<Long, Boolean> expected,
+            LongSparseBooleanArray array) {
+        assertEquals(expected.size(), array.size());
+        int i = 0;
+        for (Map.Entry<Long, Boolean> entry : expected.entrySet()) {
+            assertEquals(entry.getKey().longValue(), array.keyAt(i));
+            assertEquals(entry.getValue().booleanValue(), array.valueAt(i));
+            assertEquals(i, array.indexOfKey(entry.getKey()));
+            i++;
+        }
+    }
+}
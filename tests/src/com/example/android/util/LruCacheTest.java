@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that the bulk operations of {@link LruCache} leave the cache, its
+ * statistics and its eviction order as the equivalent single-key calls
+ * would, with and without an eviction policy, and that batched eviction
+ * reports every victim outside the lock.
+ */
+public class LruCacheTest extends TestCase {
+    private static final String TAG = "IoGallery";
+
+    private static final int MAX_SIZE = 8;
+
+    public void testGetAllMatchesGetIfPresent() {
+        final RecordingCache bulk = filledCache(false);
+        final RecordingCache single = filledCache(false);
+        final List<Integer> keys = Arrays.asList(3, 42, 0, 5, 3);
+
+        final Map<Integer, String> out = new HashMap<Integer, String>();
+        assertEquals(4, bulk.getAll(keys, out));
+        final Map<Integer, String> expected = new HashMap<Integer, String>();
+        for (Integer key : keys) {
+            final String value = single.getIfPresent(key);
+            if (value != null) {
+                expected.put(key, value);
+            }
+        }
+        assertEquals(expected, out);
+        assertEquals(single.hitCount(), bulk.hitCount());
+        assertEquals(single.missCount(), bulk.missCount());
+        assertSameOrder(single, bulk);
+    }
+
+    public void testPeekAllCountsNothing() {
+        final RecordingCache cache = filledCache(true);
+        final List<Integer> accessOrder = cache.keysInAccessOrder(MAX_SIZE);
+        final List<Integer> evictionOrder = cache.keysInEvictionOrder(MAX_SIZE);
+
+        final Map<Integer, String> out = new HashMap<Integer, String>();
+        assertEquals(2, cache.peekAll(Arrays.asList(0, 42, 7), out));
+        assertEquals("0", out.get(0));
+        assertEquals("7", out.get(7));
+        assertEquals(0, cache.hitCount());
+        assertEquals(0, cache.missCount());
+        assertEquals(accessOrder, cache.keysInAccessOrder(MAX_SIZE));
+        assertEquals(evictionOrder, cache.keysInEvictionOrder(MAX_SIZE));
+    }
+
+    public void testPutAllMatchesPut() {
+        for (boolean withPolicy : new boolean[] { false, true }) {
+            final RecordingCache bulk = filledCache(withPolicy);
+            final RecordingCache single = filledCache(withPolicy);
+
+            // Replaces some entries and overflows the cache
+            final LinkedHashMap<Integer, String> entries = new LinkedHashMap<Integer, String>();
+            for (int key : new int[] { 2, 20, 21, 5, 22 }) {
+                entries.put(key, "new" + key);
+            }
+            bulk.putAll(entries);
+            for (Map.Entry<Integer, String> entry : entries.entrySet()) {
+                single.put(entry.getKey(), entry.getValue());
+            }
+
+            assertEquals(single.snapshot(), bulk.snapshot());
+            assertEquals(single.size(), bulk.size());
+            assertEquals(single.putCount(), bulk.putCount());
+            assertSameOrder(single, bulk);
+
+            // Each old value leaves exactly once, though putAll() trims only
+            // after replacing, so may report an eviction as a replacement
+            assertEquals(single.oldValues, bulk.oldValues);
+            assertEquals(bulk.removed.size(), bulk.oldValues.size());
+            assertEquals(single.removed.size(), bulk.removed.size());
+            bulk.evictAll();
+            assertEquals(0, bulk.size());
+        }
+    }
+
+    public void testRemoveAllMatchesRemove() {
+        for (boolean withPolicy : new boolean[] { false, true }) {
+            final RecordingCache bulk = filledCache(withPolicy);
+            final RecordingCache single = filledCache(withPolicy);
+            final List<Integer> keys = Arrays.asList(6, 42, 1, 6);
+
+            assertEquals(2, bulk.removeAll(keys));
+            for (Integer key : keys) {
+                single.remove(key);
+            }
+
+            assertEquals(single.snapshot(), bulk.snapshot());
+            assertEquals(single.size(), bulk.size());
+            assertEquals(single.removed, bulk.removed);
+            assertSameOrder(single, bulk);
+            assertEquals(0, bulk.removeAll(new ArrayList<Integer>()));
+
+            // Policy forgot the removed keys too
+            bulk.evictAll();
+            assertEquals(0, bulk.size());
+        }
+    }
+
+    public void testBulkRejectsNullKeys() {
+        final RecordingCache cache = filledCache(false);
+        final List<Integer> keys = Arrays.asList(1, null);
+        try {
+            cache.getAll(keys, new HashMap<Integer, String>());
+            fail();
+        } catch (NullPointerException expected) {
+        }
+        try {
+            cache.peekAll(keys, new HashMap<Integer, String>());
+            fail();
+        } catch (NullPointerException expected) {
+        }
+        try {
+            cache.removeAll(keys);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+        final Map<Integer, String> entries = new HashMap<Integer, String>();
+        entries.put(null, "null");
+        try {
+            cache.putAll(entries);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    public void testTrimToSizeReportsVictimsOutsideLock() {
+        final RecordingCache cache = filledCache(false);
+        cache.trimToSize(MAX_SIZE - 3);
+        assertEquals(Arrays.asList("evicted 0=0", "evicted 1=1", "evicted 2=2"), cache.removed);
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertEquals(MAX_SIZE, cache.removed.size());
+        assertEquals(MAX_SIZE, cache.evictionCount());
+        assertEquals(0, cache.callbacksUnderLock);
+    }
+
+    public void testEvictionExecutorGetsOneTaskPerBatch() {
+        final RecordingCache cache = filledCache(true);
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        cache.setEvictionExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertEquals(1, tasks.size());
+        assertTrue(cache.removed.isEmpty());
+        tasks.get(0).run();
+        assertEquals(MAX_SIZE, cache.removed.size());
+        for (String removal : cache.removed) {
+            assertTrue(removal.startsWith("evicted "));
+        }
+
+        // Explicit removals are still reported inline
+        cache.put(1, "1");
+        cache.remove(1);
+        assertEquals(1, tasks.size());
+        assertEquals("removed 1=1", cache.removed.get(cache.removed.size() - 1));
+    }
+
+    public void testEvictAllUnderConcurrentReaders() throws InterruptedException {
+        final int entries = 10000;
+        final int readers = 4;
+        final AtomicInteger removals = new AtomicInteger();
+        final LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(entries) {
+            @Override
+            protected void entryRemoved(boolean evicted, Integer key, Integer oldValue,
+                    Integer newValue) {
+                removals.incrementAndGet();
+            }
+        };
+        for (int key = 0; key < entries; key++) {
+            cache.put(key, key);
+        }
+
+        // Readers keep binding until eviction is done, timing their slowest get
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(readers);
+        final long[] slowestGetNanos = new long[readers];
+        final Thread[] threads = new Thread[readers];
+        for (int i = 0; i < readers; i++) {
+            final int reader = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    final Random random = new Random(reader);
+                    started.countDown();
+                    while (!done.get()) {
+                        final long start = System.nanoTime();
+                        cache.get(random.nextInt(entries));
+                        slowestGetNanos[reader] = Math.max(slowestGetNanos[reader],
+                                System.nanoTime() - start);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        started.await();
+
+        final long start = System.nanoTime();
+        cache.evictAll();
+        final long evictNanos = System.nanoTime() - start;
+        done.set(true);
+        long slowest = 0;
+        for (int i = 0; i < readers; i++) {
+            threads[i].join();
+            slowest = Math.max(slowest, slowestGetNanos[i]);
+        }
+
+        assertEquals(0, cache.size());
+        assertEquals(entries, removals.get());
+        Log.i(TAG, "Evicted " + entries + " entries under " + readers + " readers in "
+                + evictNanos / 1000 + " us, slowest get " + slowest / 1000 + " us");
+    }
+
+    /**
+     * Returns a full cache holding keys 0 to {@link #MAX_SIZE} - 1, each
+     * mapped to its string, inserted in order.
+     */
+    private static RecordingCache filledCache(boolean withPolicy) {
+        final RecordingCache cache = new RecordingCache(withPolicy
+                ? new WTinyLfuPolicy<Integer>(MAX_SIZE, MAX_SIZE) : null);
+        for (int key = 0; key < MAX_SIZE; key++) {
+            cache.put(key, String.valueOf(key));
+        }
+        cache.removed.clear();
+        cache.oldValues.clear();
+        return cache;
+    }
+
+    private static void assertSameOrder(RecordingCache expected, RecordingCache actual) {
+        assertEquals(expected.keysInAccessOrder(MAX_SIZE), actual.keysInAccessOrder(MAX_SIZE));
+        assertEquals(expected.keysInEvictionOrder(MAX_SIZE),
+                actual.keysInEvictionOrder(MAX_SIZE));
+    }
+
+    /**
+     * Cache of one unit per entry that records every {@link #entryRemoved}.
+     */
+    private static class RecordingCache extends LruCache<Integer, String> {
+        final List<String> removed = new ArrayList<String>();
+        final Set<String> oldValues = new HashSet<String>();
+        int callbacksUnderLock;
+
+        public RecordingCache(EvictionPolicy<Integer> policy) {
+            super(MAX_SIZE, false, policy);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Integer key, String oldValue,
+                String newValue) {
+            removed.add((evicted ? "evicted " : "removed ") + key + "=" + oldValue
+                    + (newValue != null ? " for " + newValue : ""));
+            oldValues.add(oldValue);
+            if (Thread.holdsLock(this)) {
+                callbacksUnderLock++;
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2012, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.util;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Replays {@code bindView()} access traces through an {@link LruCache} with
+ * and without {@link WTinyLfuPolicy}, and reports the hit ratio of each.
+ * Traces model a grid of {@link #VISIBLE_CELLS} thumbnails over an album of
+ * {@link #ALBUM_SIZE} photos, with a cache holding {@link #CACHE_ENTRIES}.
+ */
+public class WTinyLfuPolicyTest extends TestCase {
+    private static final String TAG = "IoGallery";
+
+    private static final int ALBUM_SIZE = 20000;
+    private static final int VISIBLE_CELLS = 12;
+    private static final int CACHE_ENTRIES = 200;
+    private static final int STEPS = 20000;
+
+    /** Grid positions the user keeps returning to. */
+    private static final int[] FAVORITES = { 100, 5000, 12000 };
+
+    /** Typical distance flung, several times what the cache holds. */
+    private static final int FLING_PHOTOS = 1000;
+
+    public void testFlingsDoNotFlushFavorites() {
+        // Browsing favorites, broken up by long flings through the album
+        final int[] trace = generateTrace(new Random(1), 50);
+        final double lru = hitRatio(trace, false);
+        final double tinyLfu = hitRatio(trace, true);
+        log("favorites and flings", lru, tinyLfu);
+        assertTrue(tinyLfu >= lru + 0.02);
+    }
+
+    public void testBrowsingWithoutFlings() {
+        // Nothing for admission to protect, so must not lose much to LRU
+        final int[] trace = generateTrace(new Random(2), 0);
+        final double lru = hitRatio(trace, false);
+        final double tinyLfu = hitRatio(trace, true);
+        log("favorites only", lru, tinyLfu);
+        assertTrue(tinyLfu >= lru - 0.02);
+    }
+
+    public void testScanOnly() {
+        // No key repeats once the view moves on, so neither keeps anything
+        final int[] trace = new int[ALBUM_SIZE / VISIBLE_CELLS];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = i * VISIBLE_CELLS;
+        }
+        assertEquals(0.0, hitRatio(trace, false), 0.0);
+        assertEquals(0.0, hitRatio(trace, true), 0.0);
+    }
+
+    /**
+     * Returns the first visible position at each step of a session that
+     * scrolls a little around favorite parts of the album, and every
+     * {@code flingEvery} steps on average flings about
+     * {@link #FLING_PHOTOS} photos away, or never when 0.
+     */
+    private static int[] generateTrace(Random random, int flingEvery) {
+        final int[] trace = new int[STEPS];
+        int position = FAVORITES[0];
+        int i = 0;
+        while (i < STEPS) {
+            if (flingEvery > 0 && random.nextInt(flingEvery) == 0) {
+                // Every row passes through view on the way
+                final int distance = FLING_PHOTOS / 2 + random.nextInt(FLING_PHOTOS);
+                final int end = Math.max(0, Math.min(ALBUM_SIZE - VISIBLE_CELLS,
+                        random.nextBoolean() ? position + distance : position - distance));
+                final int step = end > position ? VISIBLE_CELLS : -VISIBLE_CELLS;
+                while (Math.abs(end - position) >= VISIBLE_CELLS && i < STEPS) {
+                    position += step;
+                    trace[i++] = position;
+                }
+                continue;
+            }
+            if (random.nextInt(5) == 0) {
+                position = FAVORITES[random.nextInt(FAVORITES.length)];
+            } else {
+                position += random.nextInt(2 * VISIBLE_CELLS + 1) - VISIBLE_CELLS;
+            }
+            position = Math.max(0, Math.min(ALBUM_SIZE - VISIBLE_CELLS, position));
+            trace[i++] = position;
+        }
+        return trace;
+    }
+
+    /**
+     * Binds every cell visible at each step of {@code trace} through a
+     * cache, returning the fraction of binds it served.
+     */
+    private static double hitRatio(int[] trace, boolean tinyLfu) {
+        final LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(
+                CACHE_ENTRIES, false, tinyLfu
+                        ? new WTinyLfuPolicy<Integer>(CACHE_ENTRIES, CACHE_ENTRIES) : null) {
+            @Override
+            protected Integer create(Integer key) {
+                return key;
+            }
+        };
+        for (int first : trace) {
+            for (int position = first; position < first + VISIBLE_CELLS; position++) {
+                cache.get(position);
+            }
+        }
+        return cache.stats().hitRate();
+    }
+
+    private static void log(String name, double lru, double tinyLfu) {
+        Log.i(TAG, "Hit ratio replaying " + name + ": LRU " + percent(lru) + ", W-TinyLFU "
+                + percent(tinyLfu));
+    }
+
+    private static String percent(double ratio) {
+        return Math.round(ratio * 1000) / 10.0 + "%";
+    }
+}